@@ -2,10 +2,59 @@
 setlocal
 cd /d %~dp0
 if not exist out mkdir out
-javac -encoding UTF-8 -d out src\ExpressionEvaluator.java src\Theme.java src\UnitConverterPanel.java src\ScientificCalculator.java
+set SOURCES=src\ExpressionEvaluator.java src\CompiledExpression.java src\EvalResult.java src\EvalSignal.java src\ProgramCodec.java src\FormulaLibrary.java src\BatchKernels.java src\Complex.java src\Rational.java src\ColumnAggregator.java src\ExpressionDocument.java src\StreamingEvaluator.java src\Worksheet.java src\WorksheetPanel.java src\Theme.java src\UnitConverterPanel.java src\ScientificCalculator.java
+
+set JAVA_OPTS=
+rem set SC_TIMING=1 to print the time to first paint.
+if "%SC_TIMING%"=="1" set JAVA_OPTS=-Dcalc.startupTiming=true
+
+rem set SC_CDS=1 to launch from a jar with an AppCDS archive (JDK 13+). The jar is rebuilt when a
+rem source is newer than it; the first launch after that records the archive when the window closes.
+if "%SC_CDS%"=="1" if not "%SC_CHECK%"=="1" if exist out\cds\calculator.jar (
+  powershell -NoProfile -Command "$jar = (Get-Item 'out\cds\calculator.jar').LastWriteTime; if (Get-ChildItem src -Filter *.java | Where-Object { $_.LastWriteTime -gt $jar }) { exit 1 }"
+  if not errorlevel 1 goto cds
+)
+
+javac -encoding UTF-8 -d out %SOURCES%
 if errorlevel 1 (
   echo Compilation failed.
   exit /b 1
 )
-java -cp out ScientificCalculator
+rem set SC_SIMD=1 to build the Vector API batch kernels (JDK 16+); batch evaluation falls back to scalar loops otherwise.
+rem Powers beyond squares (x^3, x^y) and the trig/log functions stay scalar Math calls either way.
+if "%SC_SIMD%"=="1" (
+  javac -encoding UTF-8 --add-modules jdk.incubator.vector -cp out -d out src\VectorBatchKernels.java
+  if errorlevel 1 (
+    echo Vector kernels not built, using scalar batch kernels.
+    set SC_SIMD=0
+  )
+)
+if "%SC_SIMD%"=="1" set JAVA_OPTS=%JAVA_OPTS% --add-modules jdk.incubator.vector -Dcalc.simd=true
+rem set SC_CHECK=1 to run the headless self-check (src\SelfCheck.java) instead of the calculator.
+if "%SC_CHECK%"=="1" (
+  javac -encoding UTF-8 -cp out -d out src\SelfCheck.java
+  if errorlevel 1 exit /b 1
+  java %JAVA_OPTS% -cp out SelfCheck
+  exit /b
+)
+if not "%SC_CDS%"=="1" (
+  java %JAVA_OPTS% -cp out ScientificCalculator
+  exit /b
+)
+if not exist out\cds mkdir out\cds
+del /q out\cds\calculator.jar out\cds\calculator.jsa 2>nul
+pushd out
+jar --create --file cds\calculator.jar *.class
+popd
+goto launch
 
+:cds
+if "%SC_SIMD%"=="1" set JAVA_OPTS=%JAVA_OPTS% --add-modules jdk.incubator.vector -Dcalc.simd=true
+
+:launch
+if exist out\cds\calculator.jsa (
+  java %JAVA_OPTS% -XX:SharedArchiveFile=out\cds\calculator.jsa -cp out\cds\calculator.jar ScientificCalculator
+) else (
+  echo No CDS archive yet: this run records one, close the window to write it.
+  java %JAVA_OPTS% -XX:ArchiveClassesAtExit=out\cds\calculator.jsa -cp out\cds\calculator.jar ScientificCalculator
+)
@@ -2,6 +2,58 @@
 set -euo pipefail
 cd "$(dirname "$0")"
 mkdir -p out
-javac -encoding UTF-8 -d out src/ExpressionEvaluator.java src/Theme.java src/UnitConverterPanel.java src/ScientificCalculator.java
-java -cp out ScientificCalculator
+SOURCES=(src/ExpressionEvaluator.java src/CompiledExpression.java src/EvalResult.java src/EvalSignal.java src/ProgramCodec.java src/FormulaLibrary.java src/BatchKernels.java src/Complex.java src/Rational.java src/ColumnAggregator.java src/ExpressionDocument.java src/StreamingEvaluator.java src/Worksheet.java src/WorksheetPanel.java src/Theme.java src/UnitConverterPanel.java src/ScientificCalculator.java)
 
+JAVA_OPTS=()
+# SC_TIMING=1 prints the time to first paint on stderr.
+if [[ "${SC_TIMING:-0}" == "1" ]]; then
+  JAVA_OPTS+=(-Dcalc.startupTiming=true)
+fi
+# SC_SIMD=1 ./run.sh builds the Vector API batch kernels (JDK 16+); batch evaluation falls back to scalar loops otherwise.
+# Powers beyond squares (x^3, x^y) and the trig/log functions stay scalar Math calls either way.
+if [[ "${SC_SIMD:-0}" == "1" ]]; then
+  if [[ "$(java --list-modules 2>/dev/null)" == *jdk.incubator.vector* ]]; then
+    JAVA_OPTS+=(--add-modules jdk.incubator.vector -Dcalc.simd=true)
+  else
+    echo "jdk.incubator.vector not available, using scalar batch kernels."
+    SC_SIMD=0
+  fi
+fi
+
+compile() {
+  javac -encoding UTF-8 -d out "${SOURCES[@]}"
+  if [[ "${SC_SIMD:-0}" == "1" ]]; then
+    javac -encoding UTF-8 --add-modules jdk.incubator.vector -cp out -d out src/VectorBatchKernels.java
+  fi
+}
+
+# SC_CHECK=1 ./run.sh runs the headless self-check (src/SelfCheck.java) instead of the calculator.
+if [[ "${SC_CHECK:-0}" == "1" ]]; then
+  compile
+  javac -encoding UTF-8 -cp out -d out src/SelfCheck.java
+  exec java ${JAVA_OPTS[@]+"${JAVA_OPTS[@]}"} -cp out SelfCheck
+fi
+
+# SC_CDS=1 ./run.sh launches from a jar with an AppCDS archive (JDK 13+). Sources are only
+# recompiled when they changed; the first launch after that is a training run that writes
+# out/cds/calculator.jsa when the window is closed, and later launches map it for a faster cold start.
+if [[ "${SC_CDS:-0}" == "1" ]]; then
+  JAR=out/cds/calculator.jar
+  JSA=out/cds/calculator.jsa
+  if [[ ! -f "$JAR" || -n "$(find src -name '*.java' -newer "$JAR")" ]]; then
+    compile
+    mkdir -p out/cds
+    rm -f "$JAR" "$JSA"
+    (cd out && jar --create --file cds/calculator.jar *.class)
+  fi
+  if [[ -f "$JSA" ]]; then
+    JAVA_OPTS+=(-XX:SharedArchiveFile="$JSA")
+  else
+    echo "No CDS archive yet: this run records one, close the window to write it."
+    JAVA_OPTS+=(-XX:ArchiveClassesAtExit="$JSA")
+  fi
+  exec java "${JAVA_OPTS[@]}" -cp "$JAR" ScientificCalculator
+fi
+
+compile
+java ${JAVA_OPTS[@]+"${JAVA_OPTS[@]}"} -cp out ScientificCalculator
@@ -0,0 +1,51 @@
+/**
+ * Element-wise loops used by {@link CompiledExpression#evaluateBatch}. Each kernel updates
+ * {@code a[from..to)} in place, taking the right operand from {@code b} where there is one.
+ *
+ * This class is the plain scalar implementation. With {@code -Dcalc.simd=true} and the
+ * {@code jdk.incubator.vector} module on the module path, {@link #get()} returns
+ * {@code VectorBatchKernels} instead; if that class or the module cannot be loaded the
+ * scalar kernels are used.
+ */
+class BatchKernels {
+
+    private static final BatchKernels INSTANCE = select();
+
+    static BatchKernels get() { return INSTANCE; }
+
+    private static BatchKernels select() {
+        if (Boolean.getBoolean("calc.simd")) {
+            try {
+                return (BatchKernels) Class.forName("VectorBatchKernels").getDeclaredConstructor().newInstance();
+            } catch (Throwable ignored) {
+                // kernel class not compiled, or incubator module not resolved
+            }
+        }
+        return new BatchKernels();
+    }
+
+    void neg(double[] a, int from, int to) { for (int i = from; i < to; i++) a[i] = -a[i]; }
+    void add(double[] a, double[] b, int from, int to) { for (int i = from; i < to; i++) a[i] += b[i]; }
+    void sub(double[] a, double[] b, int from, int to) { for (int i = from; i < to; i++) a[i] -= b[i]; }
+    void mul(double[] a, double[] b, int from, int to) { for (int i = from; i < to; i++) a[i] *= b[i]; }
+    void div(double[] a, double[] b, int from, int to) { for (int i = from; i < to; i++) a[i] /= b[i]; }
+    void mod(double[] a, double[] b, int from, int to) { for (int i = from; i < to; i++) a[i] %= b[i]; }
+    void pow(double[] a, double[] b, int from, int to) { for (int i = from; i < to; i++) a[i] = Math.pow(a[i], b[i]); }
+    void powi(double[] a, int exp, int from, int to) { for (int i = from; i < to; i++) a[i] = Math.pow(a[i], exp); }
+
+    void sqrt(double[] a, int from, int to) { for (int i = from; i < to; i++) a[i] = Math.sqrt(a[i]); }
+    void abs(double[] a, int from, int to) { for (int i = from; i < to; i++) a[i] = Math.abs(a[i]); }
+    void floor(double[] a, int from, int to) { for (int i = from; i < to; i++) a[i] = Math.floor(a[i]); }
+    void ceil(double[] a, int from, int to) { for (int i = from; i < to; i++) a[i] = Math.ceil(a[i]); }
+
+    final void func(int fn, ExpressionEvaluator.AngleMode mode, double[] a, int from, int to) {
+        switch (fn) {
+            case ExpressionEvaluator.F_SQRT: sqrt(a, from, to); break;
+            case ExpressionEvaluator.F_ABS: abs(a, from, to); break;
+            case ExpressionEvaluator.F_FLOOR: floor(a, from, to); break;
+            case ExpressionEvaluator.F_CEIL: ceil(a, from, to); break;
+            default:
+                for (int i = from; i < to; i++) a[i] = ExpressionEvaluator.applyFunc(fn, a[i], mode);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Aggregates an expression over data files without loading them:
+ * sum(expr), mean(expr), min(expr), max(expr) and count(expr), e.g. "sum(x^2)" or
+ * "max(sqrt(x^2+y^2))", where the variables are bound to columns.
+ *
+ * Two sources are supported:
+ * - binary columns: one file per variable holding raw little-endian doubles
+ * - CSV: one comma-separated file, variables bound to field indexes
+ *
+ * Files are memory-mapped chunk by chunk with {@link FileChannel#map} and the chunks are
+ * processed in parallel. Each chunk decodes rows into one block-sized buffer per variable,
+ * runs {@link CompiledExpression#evaluateBatch} on it and folds the results into a partial.
+ * Partials are merged with Neumaier compensated summation. Heap use depends on the block
+ * size and the number of threads, not on the file size.
+ *
+ * Rows follow batch semantics: an undefined row (e.g. sqrt of a negative) is NaN and turns
+ * the aggregate into NaN. Over no rows at all, sum and count are 0 and mean, min and max
+ * throw {@link ArithmeticException}.
+ */
+public class ColumnAggregator {
+
+    private static final long CHUNK_ROWS = 1 << 20;          // binary: rows per mapped chunk
+    private static final long CHUNK_BYTES = 32L << 20;       // CSV: bytes per chunk
+    private static final int MAX_LINE = 1 << 16;             // CSV: longest line a chunk may run past its end
+
+    private final ExpressionEvaluator evaluator;
+
+    public ColumnAggregator(ExpressionEvaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /** Binds each variable to a file of little-endian doubles; all files must have the same row count. */
+    public double aggregateBinary(String expr, Map<String, Path> columns) throws IOException {
+        Aggregate agg = Aggregate.parse(expr);
+        String[] vars = columns.keySet().toArray(new String[0]);
+        CompiledExpression program = evaluator.compile(agg.body, vars);
+
+        FileChannel[] channels = new FileChannel[vars.length];
+        try {
+            long rows = -1;
+            for (int v = 0; v < vars.length; v++) {
+                channels[v] = FileChannel.open(columns.get(vars[v]), StandardOpenOption.READ);
+                long size = channels[v].size();
+                if (size % Double.BYTES != 0) throw new IllegalArgumentException("Not a double column: " + columns.get(vars[v]));
+                if (rows >= 0 && rows != size / Double.BYTES) throw new IllegalArgumentException("Columns differ in length");
+                rows = size / Double.BYTES;
+            }
+            if (rows < 0) throw new IllegalArgumentException("No columns bound");
+
+            final long total = rows;
+            int chunks = (int) ((total + CHUNK_ROWS - 1) / CHUNK_ROWS);
+            Partial p = IntStream.range(0, chunks).parallel()
+                    .mapToObj(c -> binaryChunk(program, channels, c * CHUNK_ROWS, Math.min(total, (c + 1) * CHUNK_ROWS)))
+                    .reduce(new Partial(), Partial::merge);
+            return agg.result(p);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (FileChannel ch : channels) if (ch != null) ch.close();
+        }
+    }
+
+    /** Binds each variable to a zero-based field index of a CSV file; several variables may share a field. */
+    public double aggregateCsv(String expr, Path csv, boolean hasHeader, Map<String, Integer> columns) throws IOException {
+        Aggregate agg = Aggregate.parse(expr);
+        String[] vars = columns.keySet().toArray(new String[0]);
+        CompiledExpression program = evaluator.compile(agg.body, vars);
+
+        int fields = 0;
+        for (int idx : columns.values()) {
+            if (idx < 0) throw new IllegalArgumentException("Negative CSV column index: " + idx);
+            fields = Math.max(fields, idx + 1);
+        }
+        int[][] slotsOfField = new int[fields][0];
+        for (int v = 0; v < vars.length; v++) {
+            int f = columns.get(vars[v]);
+            slotsOfField[f] = Arrays.copyOf(slotsOfField[f], slotsOfField[f].length + 1);
+            slotsOfField[f][slotsOfField[f].length - 1] = v;
+        }
+
+        try (FileChannel ch = FileChannel.open(csv, StandardOpenOption.READ)) {
+            long size = ch.size();
+            int chunks = (int) Math.max(1, (size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+            Partial p = IntStream.range(0, chunks).parallel()
+                    .mapToObj(c -> csvChunk(program, ch, size, c * CHUNK_BYTES, Math.min(size, (c + 1) * CHUNK_BYTES),
+                            hasHeader, slotsOfField))
+                    .reduce(new Partial(), Partial::merge);
+            return agg.result(p);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // ----- chunk workers -----
+
+    private static Partial binaryChunk(CompiledExpression program, FileChannel[] channels, long firstRow, long endRow) {
+        int rows = (int) (endRow - firstRow);
+        int block = Math.min(CompiledExpression.BLOCK_SIZE, rows);
+        double[][] buf = new double[channels.length][block];
+        double[] out = new double[block];
+        double[][] regs = program.newRegisters(block);
+        Partial p = new Partial();
+        try {
+            DoubleBuffer[] cols = new DoubleBuffer[channels.length];
+            for (int v = 0; v < channels.length; v++) {
+                MappedByteBuffer m = channels[v].map(FileChannel.MapMode.READ_ONLY, firstRow * Double.BYTES, (long) rows * Double.BYTES);
+                cols[v] = m.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+            for (int done = 0; done < rows; done += block) {
+                int n = Math.min(block, rows - done);
+                for (int v = 0; v < cols.length; v++) cols[v].get(buf[v], 0, n);
+                program.evaluateBatch(buf, out, n, regs);
+                p.addAll(out, n);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return p;
+    }
+
+    private static Partial csvChunk(CompiledExpression program, FileChannel ch, long size, long start, long end,
+                                    boolean hasHeader, int[][] slotsOfField) {
+        Partial p = new Partial();
+        if (start >= end) return p;
+        int vars = program.vars.length;
+        int block = CompiledExpression.BLOCK_SIZE;
+        double[][] buf = new double[vars][block];
+        double[] out = new double[block];
+        double[][] regs = program.newRegisters(block);
+
+        try {
+            // Map one byte before the chunk (to see whether a line starts at 'start') and
+            // enough after it to finish the last line that starts inside the chunk.
+            long mapFrom = Math.max(0, start - 1);
+            long mapTo = Math.min(size, end + MAX_LINE);
+            MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, mapFrom, mapTo - mapFrom);
+            int limit = (int) (mapTo - mapFrom);
+            int stop = (int) (end - mapFrom);
+
+            int pos = (int) (start - mapFrom);
+            if (start > 0) {
+                pos = 0;
+                while (pos < limit && m.get(pos) != '\n') pos++;
+                pos++;   // first line that starts at or after 'start'
+            }
+            if (start == 0 && hasHeader) {
+                while (pos < limit && m.get(pos) != '\n') pos++;
+                pos++;
+            }
+
+            int n = 0;
+            while (pos < stop) {
+                int lineEnd = pos;
+                while (lineEnd < limit && m.get(lineEnd) != '\n') lineEnd++;
+                if (lineEnd == limit && mapTo < size) throw new IllegalArgumentException("CSV line longer than " + MAX_LINE + " bytes");
+                int contentEnd = lineEnd;
+                if (contentEnd > pos && m.get(contentEnd - 1) == '\r') contentEnd--;
+
+                if (contentEnd > pos) {
+                    for (int v = 0; v < vars; v++) buf[v][n] = Double.NaN;
+                    int field = 0, fs = pos;
+                    for (int i = pos; i <= contentEnd && field < slotsOfField.length; i++) {
+                        if (i == contentEnd || m.get(i) == ',') {
+                            int[] slots = slotsOfField[field];
+                            if (slots.length > 0) {
+                                double x = parseDouble(m, fs, i);
+                                for (int slot : slots) buf[slot][n] = x;
+                            }
+                            field++;
+                            fs = i + 1;
+                        }
+                    }
+                    if (++n == block) {
+                        program.evaluateBatch(buf, out, n, regs);
+                        p.addAll(out, n);
+                        n = 0;
+                    }
+                }
+                pos = lineEnd + 1;
+            }
+            if (n > 0) {
+                program.evaluateBatch(buf, out, n, regs);
+                p.addAll(out, n);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return p;
+    }
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Parses a decimal field straight from the mapped bytes. Up to 15 significant digits and a
+     * decimal exponent within ±22 are converted exactly with one multiply or divide; anything
+     * else falls back to {@link Double#parseDouble}. Empty or malformed fields are NaN.
+     */
+    static double parseDouble(ByteBuffer b, int from, int to) {
+        while (from < to && b.get(from) == ' ') from++;
+        while (to > from && b.get(to - 1) == ' ') to--;
+        if (from == to) return Double.NaN;
+
+        int i = from;
+        boolean neg = false;
+        if (b.get(i) == '-' || b.get(i) == '+') { neg = b.get(i) == '-'; i++; }
+        long mant = 0;
+        int digits = 0, scale = 0;
+        boolean any = false, dot = false;
+        for (; i < to; i++) {
+            byte c = b.get(i);
+            if (c >= '0' && c <= '9') {
+                any = true;
+                if (mant == 0 && c == '0') { if (dot) scale--; continue; }   // leading zeros carry no precision
+                if (digits < 18) { mant = mant * 10 + (c - '0'); digits++; if (dot) scale--; }
+                else if (!dot) scale++;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else break;
+        }
+        if (!any) return Double.NaN;
+        if (i < to && (b.get(i) == 'e' || b.get(i) == 'E')) {
+            i++;
+            boolean eneg = false;
+            if (i < to && (b.get(i) == '-' || b.get(i) == '+')) { eneg = b.get(i) == '-'; i++; }
+            int e = 0, start = i;
+            for (; i < to && b.get(i) >= '0' && b.get(i) <= '9'; i++) e = Math.min(e * 10 + (b.get(i) - '0'), 100000);
+            if (i == start) return Double.NaN;
+            scale += eneg ? -e : e;
+        }
+        if (i != to) return Double.NaN;
+
+        if (digits <= 15 && Math.abs(scale) <= 22) {
+            double d = scale >= 0 ? mant * POW10[scale] : mant / POW10[-scale];
+            return neg ? -d : d;
+        }
+        byte[] tmp = new byte[to - from];
+        for (int k = 0; k < tmp.length; k++) tmp[k] = b.get(from + k);
+        try {
+            return Double.parseDouble(new String(tmp, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    // ----- aggregation -----
+
+    /** Running count/min/max and a Neumaier-compensated sum. */
+    static final class Partial {
+        long count;
+        double sum, comp;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+        void add(double x) {
+            double t = sum + x;
+            if (Math.abs(sum) >= Math.abs(x)) comp += (sum - t) + x;
+            else comp += (x - t) + sum;
+            sum = t;
+        }
+
+        void addAll(double[] xs, int n) {
+            for (int i = 0; i < n; i++) {
+                double x = xs[i];
+                add(x);
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            }
+            count += n;
+        }
+
+        Partial merge(Partial o) {
+            Partial r = new Partial();
+            r.sum = sum;
+            r.comp = comp + o.comp;
+            r.add(o.sum);
+            r.count = count + o.count;
+            r.min = Math.min(min, o.min);
+            r.max = Math.max(max, o.max);
+            return r;
+        }
+
+        double total() { return sum + comp; }
+    }
+
+    private static final class Aggregate {
+        private static final Map<String, String> NAMES = new LinkedHashMap<>();
+        static {
+            NAMES.put("sum", "sum");
+            NAMES.put("mean", "mean");
+            NAMES.put("avg", "mean");
+            NAMES.put("min", "min");
+            NAMES.put("max", "max");
+            NAMES.put("count", "count");
+        }
+
+        final String kind;
+        final String body;
+
+        private Aggregate(String kind, String body) { this.kind = kind; this.body = body; }
+
+        static Aggregate parse(String input) {
+            if (input == null) throw new IllegalArgumentException("Expression is null");
+            String expr = input.trim();
+            int open = expr.indexOf('(');
+            if (open < 0 || !expr.endsWith(")")) throw new IllegalArgumentException("Expected an aggregate such as sum(x^2)");
+            String name = expr.substring(0, open).trim().toLowerCase(Locale.ROOT);
+            String kind = NAMES.get(name);
+            if (kind == null) throw new IllegalArgumentException("Unknown aggregate: " + name);
+
+            // the '(' after the name must close at the final ')'
+            int depth = 0;
+            for (int i = open; i < expr.length(); i++) {
+                char c = expr.charAt(i);
+                if (c == '(') depth++;
+                else if (c == ')' && --depth == 0 && i != expr.length() - 1) {
+                    throw new IllegalArgumentException("Only a single aggregate call is supported");
+                }
+            }
+            return new Aggregate(kind, expr.substring(open + 1, expr.length() - 1));
+        }
+
+        double result(Partial p) {
+            switch (kind) {
+                case "sum": return p.total();
+                case "mean":
+                    if (p.count == 0) throw new ArithmeticException("mean of empty data");
+                    return p.total() / p.count;
+                case "min":
+                    if (p.count == 0) throw new ArithmeticException("min of empty data");
+                    return p.min;
+                case "max":
+                    if (p.count == 0) throw new ArithmeticException("max of empty data");
+                    return p.max;
+                case "count": return p.count;
+                default: throw new IllegalStateException(kind);
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An expression parsed once by {@link ExpressionEvaluator#compile} into a flat stack program.
+ * Each instruction is an opcode plus one int argument (constant index, variable slot,
+ * function id, integral exponent or callee index).
+ *
+ * A CALL runs the compiled body of a user-defined function (see
+ * {@link ExpressionEvaluator#defineFunction}) that was too large to inline. Its arguments are
+ * the top values of the caller's stack and the callee uses the slots above them as its own
+ * stack, so calls share one stack and allocate nothing.
+ *
+ * {@link #evaluate} follows the scalar evaluator's rules and throws on domain errors;
+ * {@link #tryEvaluate} reports them in an {@link EvalResult} instead.
+ * {@link #evaluateBatch} runs the program over whole columns, one block of rows at a time,
+ * and uses IEEE semantics instead: undefined rows come out as NaN or Infinity.
+ * {@link #evaluateComplex} runs the same program over complex values, and
+ * {@link #evaluateExact} over exact fractions.
+ */
+public final class CompiledExpression {
+
+    static final byte CONST = 0, VAR = 1, NEG = 2, ADD = 3, SUB = 4, MUL = 5, DIV = 6,
+            MOD = 7, POW = 8, POWI = 9, FUNC = 10, IMAG = 11, CALL = 12;
+
+    /** Largest |exponent| that is folded into a POWI instruction. */
+    static final int MAX_POWI = 16;
+
+    /**
+     * Rows per batch block; every stack slot gets one register of this length. Values below 1 count as 1.
+     * 256, 1024 and 4096 measure within noise of each other (8 KB per register at 1024).
+     */
+    static final int BLOCK_SIZE = Math.max(1, Integer.getInteger("calc.batchBlock", 1024));
+
+    final byte[] ops;
+    final int[] args;
+    final int[] cols;                       // source index of each operator/function, for error positions
+    final double[] constants;
+    final String[] literals;                // source text of constants; null for pi and e
+    final String[] vars;
+    final ExpressionEvaluator.AngleMode angleMode;
+    final int maxStack;
+    final CompiledExpression[] callees;     // CALL targets; their vars are the function's parameters
+    final int stackSize;                    // maxStack plus the deepest callee's stackSize
+    private final ExpressionEvaluator.UserFunction[] uses;
+
+    private volatile Rational[] exactConstants;   // parsed on first exact evaluation; filled before publishing
+
+    CompiledExpression(byte[] ops, int[] args, int[] cols, double[] constants, String[] literals, String[] vars,
+                       ExpressionEvaluator.AngleMode angleMode, int maxStack,
+                       CompiledExpression[] callees, ExpressionEvaluator.UserFunction[] uses) {
+        this.ops = ops;
+        this.args = args;
+        this.cols = cols;
+        this.constants = constants;
+        this.literals = literals;
+        this.vars = vars;
+        this.angleMode = angleMode;
+        this.maxStack = maxStack;
+        this.callees = callees;
+        this.uses = uses;
+        int calleeStack = 0;
+        for (CompiledExpression c : callees) calleeStack = Math.max(calleeStack, c.stackSize);
+        this.stackSize = maxStack + calleeStack;
+    }
+
+    public String[] getVariables() { return vars.clone(); }
+    public ExpressionEvaluator.AngleMode getAngleMode() { return angleMode; }
+
+    /**
+     * True once a user-defined function this program was compiled against has been redefined;
+     * the program keeps the old definition until it is compiled again.
+     */
+    public boolean isStale() {
+        for (ExpressionEvaluator.UserFunction f : uses) {
+            if (f.stale) return true;
+        }
+        return false;
+    }
+
+    /** Versioned binary form of this program (see {@link ProgramCodec}), for {@link #fromBytes}. */
+    public byte[] toBytes() {
+        byte[] body = ProgramCodec.encode(this);
+        byte[] out = new byte[body.length + 1];
+        out[0] = (byte) ProgramCodec.VERSION;
+        System.arraycopy(body, 0, out, 1, body.length);
+        return out;
+    }
+
+    /** Decodes and verifies a program written by {@link #toBytes}. */
+    public static CompiledExpression fromBytes(byte[] data) {
+        if (data.length == 0 || data[0] != ProgramCodec.VERSION) {
+            throw new IllegalArgumentException("Unsupported compiled expression version " + (data.length == 0 ? "(empty)" : data[0]));
+        }
+        ByteBuffer in = ByteBuffer.wrap(data, 1, data.length - 1);
+        try {
+            CompiledExpression p = ProgramCodec.read(in);
+            if (in.hasRemaining()) throw new IllegalArgumentException("Corrupt compiled expression: trailing bytes");
+            return p;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Corrupt compiled expression: truncated");
+        }
+    }
+
+    public double evaluate(double... values) {
+        if (values.length != vars.length) {
+            throw new IllegalArgumentException("Expected " + vars.length + " values, got " + values.length);
+        }
+        try {
+            return execute(values);
+        } catch (EvalSignal s) {
+            throw s.toException();
+        }
+    }
+
+    /** Like {@link #evaluate} but never throws for domain errors; see {@link ExpressionEvaluator#tryEval}. */
+    public EvalResult tryEvaluate(double... values) {
+        if (values.length != vars.length) {
+            throw new IllegalArgumentException("Expected " + vars.length + " values, got " + values.length);
+        }
+        try {
+            return EvalResult.ok(execute(values));
+        } catch (EvalSignal s) {
+            return s.toResult();
+        }
+    }
+
+    /** The scalar interpreter; errors are raised as {@link EvalSignal}s. */
+    double execute(double[] values) {
+        double result = run(values, 0, new double[stackSize], 0);
+        if (Double.isNaN(result) || Double.isInfinite(result)) throw EvalSignal.raise(EvalResult.Code.NOT_FINITE, -1, null);
+        return result;
+    }
+
+    /** Runs with variables at {@code values[vbase...]} and the stack at {@code st[base...]}. */
+    private double run(double[] values, int vbase, double[] st, int base) {
+        int sp = base;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case CONST: st[sp++] = constants[args[pc]]; break;
+                case VAR: st[sp++] = values[vbase + args[pc]]; break;
+                case NEG: st[sp - 1] = -st[sp - 1]; break;
+                case ADD: sp--; st[sp - 1] += st[sp]; break;
+                case SUB: sp--; st[sp - 1] -= st[sp]; break;
+                case MUL: sp--; st[sp - 1] *= st[sp]; break;
+                case DIV:
+                    sp--;
+                    if (st[sp] == 0.0) throw EvalSignal.raise(EvalResult.Code.DIVISION_BY_ZERO, cols[pc], null);
+                    st[sp - 1] /= st[sp];
+                    break;
+                case MOD:
+                    sp--;
+                    if (st[sp] == 0.0) throw EvalSignal.raise(EvalResult.Code.MODULO_BY_ZERO, cols[pc], null);
+                    st[sp - 1] %= st[sp];
+                    break;
+                case POW: sp--; st[sp - 1] = Math.pow(st[sp - 1], st[sp]); break;
+                case POWI: st[sp - 1] = Math.pow(st[sp - 1], args[pc]); break;
+                case FUNC: {
+                    String error = ExpressionEvaluator.domainError(args[pc], st[sp - 1]);
+                    if (error != null) throw EvalSignal.raise(EvalResult.Code.DOMAIN, cols[pc], error);
+                    st[sp - 1] = ExpressionEvaluator.applyFunc(args[pc], st[sp - 1], angleMode);
+                    break;
+                }
+                case IMAG: throw EvalSignal.raise(EvalResult.Code.COMPLEX_ONLY, cols[pc], null);
+                case CALL: {
+                    CompiledExpression f = callees[args[pc]];
+                    sp -= f.vars.length;
+                    try {
+                        st[sp] = f.run(st, sp, st, sp + f.vars.length);
+                    } catch (EvalSignal s) {
+                        s.pos = cols[pc];                   // report the call, not the body
+                        throw s;
+                    }
+                    sp++;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Bad opcode: " + ops[pc]);
+            }
+        }
+        return st[base];
+    }
+
+    /**
+     * Evaluates over complex numbers with real-valued variables. Real and imaginary parts live
+     * in two parallel stacks; only the returned {@link Complex} is allocated per call.
+     */
+    public Complex evaluateComplex(double... values) {
+        if (values.length != vars.length) {
+            throw new IllegalArgumentException("Expected " + vars.length + " values, got " + values.length);
+        }
+        double[] re = new double[stackSize];
+        double[] im = new double[stackSize];
+        runComplex(values, -1, re, im, 0);
+        if (!Double.isFinite(re[0]) || !Double.isFinite(im[0])) throw new ArithmeticException("Result is not a finite number");
+        return new Complex(re[0], im[0]);
+    }
+
+    /** Variables come from {@code values}, or from stack slots {@code vbase...} when it is {@code >= 0}. */
+    private void runComplex(double[] values, int vbase, double[] re, double[] im, int base) {
+        int sp = base;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case CONST: re[sp] = constants[args[pc]]; im[sp++] = 0.0; break;
+                case VAR:
+                    if (vbase < 0) { re[sp] = values[args[pc]]; im[sp++] = 0.0; }
+                    else { re[sp] = re[vbase + args[pc]]; im[sp++] = im[vbase + args[pc]]; }
+                    break;
+                case IMAG: re[sp] = 0.0; im[sp++] = 1.0; break;
+                case NEG: re[sp - 1] = -re[sp - 1]; im[sp - 1] = -im[sp - 1]; break;
+                case ADD: sp--; re[sp - 1] += re[sp]; im[sp - 1] += im[sp]; break;
+                case SUB: sp--; re[sp - 1] -= re[sp]; im[sp - 1] -= im[sp]; break;
+                case MUL: sp--; Complex.mul(re, im, sp - 1, re[sp], im[sp]); break;
+                case DIV: sp--; Complex.div(re, im, sp - 1, re[sp], im[sp]); break;
+                case MOD: sp--; Complex.mod(re, im, sp - 1, re[sp], im[sp]); break;
+                case POW: sp--; Complex.pow(re, im, sp - 1, re[sp], im[sp]); break;
+                case POWI: Complex.powi(re, im, sp - 1, args[pc]); break;
+                case FUNC: Complex.func(args[pc], angleMode, re, im, sp - 1); break;
+                case CALL: {
+                    CompiledExpression f = callees[args[pc]];
+                    sp -= f.vars.length;
+                    f.runComplex(null, sp, re, im, sp + f.vars.length);
+                    re[sp] = re[sp + f.vars.length];
+                    im[sp] = im[sp + f.vars.length];
+                    sp++;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Bad opcode: " + ops[pc]);
+            }
+        }
+    }
+
+    /**
+     * Evaluates with exact rational arithmetic (see {@link Rational}). Literals keep their
+     * decimal value, so 0.1 is exactly 1/10; integral variable values are exact integers and
+     * other variable values stay double. Returns a {@link Rational}, or a {@link Double} if a
+     * function without an exact result was involved.
+     */
+    public Number evaluateExact(double... values) {
+        if (values.length != vars.length) {
+            throw new IllegalArgumentException("Expected " + vars.length + " values, got " + values.length);
+        }
+        Rational.Stack st = new Rational.Stack(stackSize);
+        runExact(values, -1, st, 0);
+        return st.result(0);
+    }
+
+    /** Variables come from {@code values}, or from stack slots {@code vbase...} when it is {@code >= 0}. */
+    private void runExact(double[] values, int vbase, Rational.Stack st, int base) {
+        Rational[] exact = exactConstants();
+        int sp = base;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case CONST: {
+                    Rational c = exact[args[pc]];
+                    if (c != null) st.set(sp++, c); else st.setReal(sp++, constants[args[pc]]);
+                    break;
+                }
+                case VAR:
+                    if (vbase < 0) st.setDouble(sp++, values[args[pc]]);
+                    else st.copy(vbase + args[pc], sp++);
+                    break;
+                case NEG: st.neg(sp - 1); break;
+                case ADD: sp--; st.add(sp - 1); break;
+                case SUB: sp--; st.sub(sp - 1); break;
+                case MUL: sp--; st.mul(sp - 1); break;
+                case DIV: sp--; st.div(sp - 1); break;
+                case MOD: sp--; st.mod(sp - 1); break;
+                case POW: sp--; st.pow(sp - 1); break;
+                case POWI: st.powi(sp - 1, args[pc]); break;
+                case FUNC: st.func(args[pc], angleMode, sp - 1); break;
+                case IMAG: throw new ArithmeticException("Imaginary unit i requires complex mode");
+                case CALL: {
+                    CompiledExpression f = callees[args[pc]];
+                    sp -= f.vars.length;
+                    f.runExact(null, sp, st, sp + f.vars.length);
+                    st.copy(sp + f.vars.length, sp);
+                    sp++;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Bad opcode: " + ops[pc]);
+            }
+        }
+    }
+
+    private Rational[] exactConstants() {
+        Rational[] exact = exactConstants;
+        if (exact == null) {
+            exact = new Rational[constants.length];
+            for (int i = 0; i < exact.length; i++) {
+                if (literals[i] != null) exact[i] = Rational.parseDecimal(literals[i]);
+            }
+            exactConstants = exact;
+        }
+        return exact;
+    }
+
+    /**
+     * Evaluates rows {@code [0, rows)}: {@code columns[i]} holds the values of variable {@code i}
+     * and row results are written to {@code out}.
+     */
+    public void evaluateBatch(double[][] columns, double[] out, int rows) {
+        if (columns.length != vars.length) {
+            throw new IllegalArgumentException("Expected " + vars.length + " columns, got " + columns.length);
+        }
+        for (double[] col : columns) {
+            if (col.length < rows) throw new IllegalArgumentException("Column shorter than " + rows + " rows");
+        }
+        if (out.length < rows) throw new IllegalArgumentException("Output shorter than " + rows + " rows");
+        evaluateBatch(columns, out, rows, newRegisters(rows));
+    }
+
+    /** Scratch registers for batches of up to {@code rows} rows; reusable across calls. */
+    double[][] newRegisters(int rows) {
+        return new double[stackSize][Math.min(BLOCK_SIZE, Math.max(rows, 1))];
+    }
+
+    /** Unchecked batch loop; {@code regs} must come from {@link #newRegisters} with at least {@code rows}. */
+    void evaluateBatch(double[][] columns, double[] out, int rows, double[][] regs) {
+        BatchKernels k = BatchKernels.get();
+        for (int from = 0; from < rows; from += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, rows - from);
+            runBlock(k, regs, 0, columns, -1, from, n);
+            System.arraycopy(regs[0], 0, out, from, n);
+        }
+    }
+
+    /**
+     * Result goes to {@code regs[base]}. Variables are rows {@code [from, from + n)} of
+     * {@code columns}, or registers {@code vbase...} when it is {@code >= 0}.
+     */
+    private void runBlock(BatchKernels k, double[][] regs, int base, double[][] columns, int vbase, int from, int n) {
+        int sp = base;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case CONST: Arrays.fill(regs[sp++], 0, n, constants[args[pc]]); break;
+                case VAR:
+                    if (vbase < 0) System.arraycopy(columns[args[pc]], from, regs[sp++], 0, n);
+                    else System.arraycopy(regs[vbase + args[pc]], 0, regs[sp++], 0, n);
+                    break;
+                case NEG: k.neg(regs[sp - 1], 0, n); break;
+                case ADD: sp--; k.add(regs[sp - 1], regs[sp], 0, n); break;
+                case SUB: sp--; k.sub(regs[sp - 1], regs[sp], 0, n); break;
+                case MUL: sp--; k.mul(regs[sp - 1], regs[sp], 0, n); break;
+                case DIV: sp--; k.div(regs[sp - 1], regs[sp], 0, n); break;
+                case MOD: sp--; k.mod(regs[sp - 1], regs[sp], 0, n); break;
+                case POW: sp--; k.pow(regs[sp - 1], regs[sp], 0, n); break;
+                case POWI: k.powi(regs[sp - 1], args[pc], 0, n); break;
+                case FUNC: k.func(args[pc], angleMode, regs[sp - 1], 0, n); break;
+                case IMAG: Arrays.fill(regs[sp++], 0, n, Double.NaN); break;
+                case CALL: {
+                    CompiledExpression f = callees[args[pc]];
+                    sp -= f.vars.length;
+                    int top = sp + f.vars.length;
+                    f.runBlock(k, regs, top, null, sp, 0, n);
+                    double[] r = regs[sp];                  // swap the result in rather than copy it
+                    regs[sp] = regs[top];
+                    regs[top] = r;
+                    sp++;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Bad opcode: " + ops[pc]);
+            }
+        }
+    }
+}
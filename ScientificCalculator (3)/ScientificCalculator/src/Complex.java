@@ -0,0 +1,254 @@
+import java.text.DecimalFormat;
+
+/**
+ * Result of {@link CompiledExpression#evaluateComplex}. During evaluation complex values are
+ * never boxed: the interpreter keeps real and imaginary parts in two parallel double stacks,
+ * and the static helpers below update slot {@code k} of those stacks in place.
+ *
+ * Each helper takes the real-valued route when the operand is real and inside the real domain,
+ * so such inputs give bit-for-bit the same answer as the double evaluator.
+ */
+public final class Complex {
+
+    public final double re;
+    public final double im;
+
+    public Complex(double re, double im) {
+        this.re = re;
+        this.im = im;
+    }
+
+    public boolean isReal() { return im == 0.0; }
+
+    @Override public String toString() {
+        DecimalFormat df = new DecimalFormat("0.###############");
+        String r = df.format(re);
+        if (r.equals("-0")) r = "0";
+        String i = df.format(Math.abs(im));
+        if (im == 0.0 || i.equals("0")) return r;
+        if (i.equals("1")) i = "";                     // i rather than 1i
+        String sign = im < 0 ? "-" : "+";
+        if (r.equals("0")) return (im < 0 ? "-" : "") + i + "i";
+        return r + " " + sign + " " + i + "i";
+    }
+
+    // ----- slot arithmetic on parallel stacks -----
+
+    static void mul(double[] re, double[] im, int k, double c, double d) {
+        double a = re[k], b = im[k];
+        re[k] = a * c - b * d;
+        im[k] = a * d + b * c;
+    }
+
+    static void div(double[] re, double[] im, int k, double c, double d) {
+        if (c == 0.0 && d == 0.0) throw new ArithmeticException("Division by zero");
+        double a = re[k], b = im[k];
+        if (d == 0.0) { re[k] = a / c; im[k] = b / c; return; }
+        // Smith's algorithm, avoids overflow in c*c + d*d
+        if (Math.abs(c) >= Math.abs(d)) {
+            double r = d / c, den = c + d * r;
+            re[k] = (a + b * r) / den;
+            im[k] = (b - a * r) / den;
+        } else {
+            double r = c / d, den = c * r + d;
+            re[k] = (a * r + b) / den;
+            im[k] = (b * r - a) / den;
+        }
+    }
+
+    static void mod(double[] re, double[] im, int k, double c, double d) {
+        if (im[k] != 0.0 || d != 0.0) throw new ArithmeticException("Modulo undefined for complex values");
+        if (c == 0.0) throw new ArithmeticException("Modulo by zero");
+        re[k] %= c;
+    }
+
+    static void pow(double[] re, double[] im, int k, double c, double d) {
+        double a = re[k], b = im[k];
+        if (b == 0.0 && d == 0.0 && (a >= 0 || c == Math.rint(c))) {
+            re[k] = Math.pow(a, c);
+            return;
+        }
+        if (a == 0.0 && b == 0.0) {
+            if (c <= 0) throw new ArithmeticException("0^x undefined for Re(x)<=0");
+            re[k] = 0.0; im[k] = 0.0;
+            return;
+        }
+        // a^b = exp(b * ln(a))
+        ln(re, im, k);
+        mul(re, im, k, c, d);
+        exp(re, im, k);
+    }
+
+    static void powi(double[] re, double[] im, int k, int n) {
+        if (im[k] == 0.0) { re[k] = Math.pow(re[k], n); return; }
+        double br = re[k], bi = im[k], ar = 1.0, ai = 0.0;
+        for (int e = Math.abs(n); e != 0; e >>>= 1) {
+            if ((e & 1) != 0) { double t = ar * br - ai * bi; ai = ar * bi + ai * br; ar = t; }
+            double t = br * br - bi * bi; bi = 2 * br * bi; br = t;
+        }
+        re[k] = ar; im[k] = ai;
+        if (n < 0) inv(re, im, k);
+    }
+
+    static void inv(double[] re, double[] im, int k) {
+        double c = re[k], d = im[k];
+        if (c == 0.0 && d == 0.0) throw new ArithmeticException("1/x undefined for x=0");
+        re[k] = 1.0; im[k] = 0.0;
+        div(re, im, k, c, d);
+    }
+
+    // ----- functions -----
+
+    static void func(int fn, ExpressionEvaluator.AngleMode mode, double[] re, double[] im, int k) {
+        double a = re[k];
+        if (im[k] == 0.0 && realDomain(fn, a)) {
+            ExpressionEvaluator.checkDomain(fn, a);
+            re[k] = ExpressionEvaluator.applyFunc(fn, a, mode);
+            return;
+        }
+        boolean deg = mode == ExpressionEvaluator.AngleMode.DEG;
+        switch (fn) {
+            case ExpressionEvaluator.F_SIN: if (deg) toRad(re, im, k); sin(re, im, k); break;
+            case ExpressionEvaluator.F_COS: if (deg) toRad(re, im, k); cos(re, im, k); break;
+            case ExpressionEvaluator.F_TAN: if (deg) toRad(re, im, k); tan(re, im, k); break;
+
+            case ExpressionEvaluator.F_ASIN: asin(re, im, k); if (deg) fromRad(re, im, k); break;
+            case ExpressionEvaluator.F_ACOS: asin(re, im, k); re[k] = Math.PI / 2 - re[k]; im[k] = -im[k]; if (deg) fromRad(re, im, k); break;
+            case ExpressionEvaluator.F_ATAN: atan(re, im, k); if (deg) fromRad(re, im, k); break;
+
+            case ExpressionEvaluator.F_SINH: sinh(re, im, k); break;
+            case ExpressionEvaluator.F_COSH: cosh(re, im, k); break;
+            case ExpressionEvaluator.F_TANH: {
+                double b = im[k];
+                sinh(re, im, k);
+                double sr = re[k], si = im[k];
+                re[k] = a; im[k] = b;
+                cosh(re, im, k);
+                double cr = re[k], ci = im[k];
+                re[k] = sr; im[k] = si;
+                div(re, im, k, cr, ci);
+                break;
+            }
+
+            case ExpressionEvaluator.F_LOG:
+                if (a == 0.0 && im[k] == 0.0) throw new ArithmeticException("log(x) undefined for x=0");
+                ln(re, im, k);
+                re[k] /= Math.log(10); im[k] /= Math.log(10);
+                break;
+            case ExpressionEvaluator.F_LN:
+                if (a == 0.0 && im[k] == 0.0) throw new ArithmeticException("ln(x) undefined for x=0");
+                ln(re, im, k);
+                break;
+
+            case ExpressionEvaluator.F_SQRT: sqrt(re, im, k); break;
+            case ExpressionEvaluator.F_CBRT: pow(re, im, k, 1.0 / 3, 0.0); break;
+
+            case ExpressionEvaluator.F_ABS: re[k] = Math.hypot(a, im[k]); im[k] = 0.0; break;
+            case ExpressionEvaluator.F_EXP: exp(re, im, k); break;
+
+            case ExpressionEvaluator.F_FLOOR: re[k] = Math.floor(a); im[k] = Math.floor(im[k]); break;
+            case ExpressionEvaluator.F_CEIL: re[k] = Math.ceil(a); im[k] = Math.ceil(im[k]); break;
+            case ExpressionEvaluator.F_ROUND: re[k] = Math.rint(a); im[k] = Math.rint(im[k]); break;
+
+            case ExpressionEvaluator.F_FACT: throw new ArithmeticException("factorial undefined for complex x");
+            case ExpressionEvaluator.F_INV: inv(re, im, k); break;
+
+            default:
+                throw new IllegalArgumentException("Unknown function id: " + fn);
+        }
+    }
+
+    /** True if function {@code fn} of the real number {@code a} has a real result. */
+    private static boolean realDomain(int fn, double a) {
+        switch (fn) {
+            case ExpressionEvaluator.F_SQRT: return a >= 0;
+            case ExpressionEvaluator.F_LOG:
+            case ExpressionEvaluator.F_LN: return a > 0;
+            case ExpressionEvaluator.F_ASIN:
+            case ExpressionEvaluator.F_ACOS: return Math.abs(a) <= 1;
+            default: return true;
+        }
+    }
+
+    private static void toRad(double[] re, double[] im, int k) { re[k] = Math.toRadians(re[k]); im[k] = Math.toRadians(im[k]); }
+    private static void fromRad(double[] re, double[] im, int k) { re[k] = Math.toDegrees(re[k]); im[k] = Math.toDegrees(im[k]); }
+
+    private static void exp(double[] re, double[] im, int k) {
+        double m = Math.exp(re[k]), b = im[k];
+        re[k] = m * Math.cos(b);
+        im[k] = m * Math.sin(b);
+    }
+
+    private static void ln(double[] re, double[] im, int k) {
+        double a = re[k], b = im[k];
+        re[k] = Math.log(Math.hypot(a, b));
+        im[k] = Math.atan2(b + 0.0, a);   // + 0.0 turns -0.0 into +0.0: negated reals stay on the upper branch
+    }
+
+    private static void sqrt(double[] re, double[] im, int k) {
+        double a = re[k], b = im[k], r = Math.hypot(a, b);
+        re[k] = Math.sqrt((r + a) / 2);
+        im[k] = b < 0 ? -Math.sqrt((r - a) / 2) : Math.sqrt((r - a) / 2);
+    }
+
+    private static void sin(double[] re, double[] im, int k) {
+        double a = re[k], b = im[k];
+        re[k] = Math.sin(a) * Math.cosh(b);
+        im[k] = Math.cos(a) * Math.sinh(b);
+    }
+
+    private static void cos(double[] re, double[] im, int k) {
+        double a = re[k], b = im[k];
+        re[k] = Math.cos(a) * Math.cosh(b);
+        im[k] = -Math.sin(a) * Math.sinh(b);
+    }
+
+    private static void tan(double[] re, double[] im, int k) {
+        double a = re[k], b = im[k];
+        cos(re, im, k);
+        double cr = re[k], ci = im[k];
+        re[k] = a; im[k] = b;
+        sin(re, im, k);
+        div(re, im, k, cr, ci);
+    }
+
+    private static void sinh(double[] re, double[] im, int k) {
+        double a = re[k], b = im[k];
+        re[k] = Math.sinh(a) * Math.cos(b);
+        im[k] = Math.cosh(a) * Math.sin(b);
+    }
+
+    private static void cosh(double[] re, double[] im, int k) {
+        double a = re[k], b = im[k];
+        re[k] = Math.cosh(a) * Math.cos(b);
+        im[k] = Math.sinh(a) * Math.sin(b);
+    }
+
+    /** asin z = -i ln(iz + sqrt(1 - z^2)) */
+    private static void asin(double[] re, double[] im, int k) {
+        double a = re[k], b = im[k];
+        re[k] = 1 - (a * a - b * b);
+        im[k] = -2 * a * b;
+        sqrt(re, im, k);
+        re[k] -= b;
+        im[k] += a;
+        ln(re, im, k);
+        double t = re[k];
+        re[k] = im[k];
+        im[k] = -t;
+    }
+
+    /** atan z = (i/2) (ln(1 - iz) - ln(1 + iz)) */
+    private static void atan(double[] re, double[] im, int k) {
+        double a = re[k], b = im[k];
+        if (a == 0.0 && Math.abs(b) == 1.0) throw new ArithmeticException("atan(x) undefined for x=±i");
+        re[k] = 1 - b; im[k] = a;         // 1 + iz
+        ln(re, im, k);
+        double pr = re[k], pi = im[k];
+        re[k] = 1 + b; im[k] = -a;        // 1 - iz
+        ln(re, im, k);
+        double dr = re[k] - pr, di = im[k] - pi;
+        re[k] = -di / 2;
+        im[k] = dr / 2;
+    }
+}
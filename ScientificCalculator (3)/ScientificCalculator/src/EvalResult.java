@@ -0,0 +1,79 @@
+/**
+ * Outcome of {@link ExpressionEvaluator#tryEval}: either a value, or an error code with the
+ * 1-based column it was found at, e.g. "Mismatched ')' at column 17". Nothing is thrown for
+ * bad input, which keeps validation of mostly-invalid batches cheap.
+ */
+public final class EvalResult {
+
+    public enum Code {
+        EMPTY("Empty expression", false),
+        INVALID_NUMBER("Invalid number: ", false),
+        UNEXPECTED_CHARACTER("Unexpected character: ", false),
+        MISSING_OPERATOR("Invalid expression", false),
+        MISSING_OPERAND("Not enough operands for operator ", false),
+        MISSING_ARGUMENT("Missing argument for function: ", false),
+        WRONG_ARGUMENT_COUNT("Wrong number of arguments: ", false),
+        MISPLACED_COMMA("Misplaced comma or missing '('", false),
+        UNMATCHED_CLOSE("Mismatched ')'", false),
+        UNMATCHED_OPEN("Mismatched parentheses", false),
+        UNKNOWN_FUNCTION("Unknown function: ", false),
+        UNKNOWN_VARIABLE("Unknown variable: ", false),
+        INVALID_EXPRESSION("Invalid expression", false),
+        DIVISION_BY_ZERO("Division by zero", true),
+        MODULO_BY_ZERO("Modulo by zero", true),
+        DOMAIN("", true),
+        NOT_FINITE("Result is not a finite number", true),
+        COMPLEX_ONLY("Imaginary unit i requires complex mode", true);
+
+        final String text;          // message, or its prefix when the error has a detail
+        final boolean runtime;      // found while evaluating rather than while parsing
+
+        Code(String text, boolean runtime) {
+            this.text = text;
+            this.runtime = runtime;
+        }
+
+        /** True for errors found while evaluating a well-formed expression. */
+        public boolean isRuntime() { return runtime; }
+
+        String message(String detail) { return detail == null ? text : text + detail; }
+    }
+
+    private final double value;
+    private final Code code;
+    private final int column;
+    private final String detail;
+
+    private EvalResult(double value, Code code, int column, String detail) {
+        this.value = value;
+        this.code = code;
+        this.column = column;
+        this.detail = detail;
+    }
+
+    static EvalResult ok(double value) { return new EvalResult(value, null, 0, null); }
+
+    static EvalResult error(Code code, int column, String detail) { return new EvalResult(Double.NaN, code, column, detail); }
+
+    public boolean isOk() { return code == null; }
+
+    public double getValue() {
+        if (code != null) throw new IllegalStateException(getMessage());
+        return value;
+    }
+
+    /** Error code, or null if there is a value. */
+    public Code getCode() { return code; }
+
+    /** 1-based column of the error in the input, or 0 if it has no single position. */
+    public int getColumn() { return column; }
+
+    /** The same text the throwing methods use, plus the column; null if there is a value. */
+    public String getMessage() {
+        if (code == null) return null;
+        String m = code.message(detail);
+        return column > 0 ? m + " at column " + column : m;
+    }
+
+    @Override public String toString() { return code == null ? Double.toString(value) : getMessage(); }
+}
@@ -0,0 +1,34 @@
+/**
+ * Error raised inside the parser and interpreter. It is stackless and there is one reusable
+ * instance per thread, so raising it allocates nothing. Each public entry point catches it
+ * straight away and turns it into an {@link EvalResult} or, for the throwing methods, into the
+ * usual IllegalArgumentException / ArithmeticException.
+ */
+final class EvalSignal extends RuntimeException {
+
+    private static final ThreadLocal<EvalSignal> CURRENT = ThreadLocal.withInitial(EvalSignal::new);
+
+    EvalResult.Code code;
+    int pos;                    // 0-based index in the input, -1 if none
+    String detail;
+
+    private EvalSignal() {
+        super(null, null, false, false);
+    }
+
+    static EvalSignal raise(EvalResult.Code code, int pos, String detail) {
+        EvalSignal s = CURRENT.get();
+        s.code = code;
+        s.pos = pos;
+        s.detail = detail;
+        return s;
+    }
+
+    @Override public String getMessage() { return code == null ? null : code.message(detail); }
+
+    EvalResult toResult() { return EvalResult.error(code, pos + 1, detail); }
+
+    RuntimeException toException() {
+        return code.runtime ? new ArithmeticException(getMessage()) : new IllegalArgumentException(getMessage());
+    }
+}
@@ -0,0 +1,184 @@
+import javax.swing.text.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Document behind the calculator display. Edits are applied in place (append at the end,
+ * delete a range) instead of rebuilding the whole string, so each keystroke costs about the
+ * size of the edit rather than the size of the expression.
+ *
+ * Syntax highlighting is incremental too. Inserted text is lexed on its own and goes in as
+ * already styled runs (adjacent tokens with the same style share one run) in a single batch,
+ * so pasting or recalling a long expression fires one document event. Afterwards only the
+ * tokens at the two edges of the edit are lexed again in context and restyled. Lexing uses
+ * plain char tests, the same classes as {@link ExpressionEvaluator}'s tokenizer: numbers,
+ * identifiers (functions when followed by '('), operators and parentheses.
+ */
+public class ExpressionDocument extends DefaultStyledDocument {
+
+    private final SimpleAttributeSet plain = new SimpleAttributeSet();
+    private final SimpleAttributeSet function = new SimpleAttributeSet();
+    private final SimpleAttributeSet name = new SimpleAttributeSet();
+    private final SimpleAttributeSet operator = new SimpleAttributeSet();
+
+    private final Segment seg = new Segment();
+    private AttributeSet tokenStyle;                // set by tokenEnd
+
+    public ExpressionDocument(String fontFamily, int fontSize) {
+        Style def = getStyle(StyleContext.DEFAULT_STYLE);
+        StyleConstants.setFontFamily(def, fontFamily);
+        StyleConstants.setFontSize(def, fontSize);
+        StyleConstants.setAlignment(def, StyleConstants.ALIGN_RIGHT);
+        setParagraphAttributes(0, 0, def, false);
+
+        StyleConstants.setForeground(function, Theme.liveAccent());
+        StyleConstants.setForeground(name, Theme.liveAccent());
+        StyleConstants.setItalic(name, true);
+        StyleConstants.setBold(operator, true);
+    }
+
+    // ----- editing -----
+
+    public String text() {
+        try {
+            return getText(0, getLength());
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setText(String s) {
+        try {
+            replace(0, getLength(), s, null);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void append(String s) {
+        insert(getLength(), s);
+    }
+
+    public void insert(int offset, String s) {
+        try {
+            insertString(offset, s, null);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Removes {@code [from, to)}. */
+    public void delete(int from, int to) {
+        try {
+            remove(from, to - from);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public char charAt(int i) {
+        content(i, 1);
+        return seg.array[seg.offset];
+    }
+
+    /** Compares with {@code s} without copying the document text. */
+    public boolean contentEquals(String s) {
+        if (getLength() != s.length()) return false;
+        content(0, s.length());
+        for (int i = 0; i < s.length(); i++) if (seg.array[seg.offset + i] != s.charAt(i)) return false;
+        return true;
+    }
+
+    /** Points {@link #seg} at {@code [from, from+len)}; no copy unless the range spans the edit gap. */
+    private void content(int from, int len) {
+        try {
+            getText(from, len, seg);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override public void insertString(int offs, String str, AttributeSet a) throws BadLocationException {
+        if (str == null || str.isEmpty()) return;
+        char[] text = str.toCharArray();
+        List<ElementSpec> runs = new ArrayList<>();
+        int runStart = 0;
+        AttributeSet runStyle = null;
+        for (int i = 0; i < text.length; ) {
+            int j = tokenEnd(text, 0, i, text.length);
+            if (tokenStyle != runStyle) {
+                if (i > runStart) runs.add(run(runStyle, text, runStart, i));
+                runStart = i;
+                runStyle = tokenStyle;
+            }
+            i = j;
+        }
+        runs.add(run(runStyle, text, runStart, text.length));
+        insert(offs, runs.toArray(new ElementSpec[0]));
+
+        // the edges may join a neighbouring word or sit before a '(' in the existing text
+        restyle(offs, offs);
+        restyle(offs + text.length, offs + text.length);
+    }
+
+    @Override public void remove(int offs, int len) throws BadLocationException {
+        super.remove(offs, len);
+        restyle(offs, offs);
+    }
+
+    /** ElementSpec copies the whole array it is given, so each run gets only its own chars. */
+    private static ElementSpec run(AttributeSet style, char[] text, int from, int to) {
+        return new ElementSpec(style, ElementSpec.ContentType, Arrays.copyOfRange(text, from, to), 0, to - from);
+    }
+
+    // ----- incremental highlighting -----
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '.' || c == '_';
+    }
+
+    /** Re-lexes the tokens overlapping {@code [from, to)} plus the word just before it. */
+    private void restyle(int from, int to) {
+        int len = getLength();
+        if (len == 0) return;
+        content(0, len);
+        char[] a = seg.array;
+        int base = seg.offset;
+
+        // Back over a word and any spaces before it: inserting or removing '(' changes
+        // whether the preceding identifier is a function.
+        int start = Math.min(from, len);
+        while (start > 0 && a[base + start - 1] == ' ') start--;
+        while (start > 0 && isWordChar(a[base + start - 1])) start--;
+        int end = Math.min(to, len);
+        while (end < len && isWordChar(a[base + end])) end++;
+
+        int i = start;
+        while (i < end) {
+            int j = tokenEnd(a, base, i, len);
+            setCharacterAttributes(i, j - i, tokenStyle, true);   // attributes only, the text in seg stays valid
+            i = j;
+        }
+    }
+
+    /** End of the token starting at {@code a[base + i]}, of {@code len} chars; its style goes to {@link #tokenStyle}. */
+    private int tokenEnd(char[] a, int base, int i, int len) {
+        char c = a[base + i];
+        int j = i + 1;
+        if ((c >= '0' && c <= '9') || c == '.') {
+            while (j < len && ((a[base + j] >= '0' && a[base + j] <= '9') || a[base + j] == '.')) j++;
+            tokenStyle = plain;
+        } else if (Character.isLetter(c)) {
+            while (j < len && (Character.isLetterOrDigit(a[base + j]) || a[base + j] == '_')) j++;
+            int k = j;
+            while (k < len && a[base + k] == ' ') k++;
+            tokenStyle = (k < len && a[base + k] == '(') ? function : name;
+        } else if ("+-*/%^".indexOf(c) >= 0) {
+            tokenStyle = operator;
+        } else {
+            tokenStyle = plain;
+        }
+        return j;
+    }
+}
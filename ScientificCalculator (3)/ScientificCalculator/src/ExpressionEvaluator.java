@@ -1,4 +1,10 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A small scientific expression evaluator (no external libs).
@@ -17,8 +23,15 @@ import java.util.*;
  *   floor, ceil, round,
  *   fact (factorial),
  *   inv (1/x)
+ * - User functions: f(a, b) after {@link #defineFunction}("f(x, y) = sqrt(x^2 + y^2)")
  *
  * Trig functions can operate in degrees or radians depending on the evaluator mode.
+ *
+ * {@link #evalComplex} evaluates the same parsed form over complex numbers, so sqrt(-1),
+ * ln(-2) or (-8)^(1/3) have results; there the name i is the imaginary unit.
+ * {@link #evalExact} evaluates it over exact fractions.
+ * {@link #tryEval} returns errors as an {@link EvalResult} with a code and column instead of
+ * throwing them.
  */
 public class ExpressionEvaluator {
 
@@ -30,69 +43,173 @@ public class ExpressionEvaluator {
     public AngleMode getAngleMode() { return angleMode; }
 
     public double eval(String input) {
+        try {
+            return parse(input, NO_NAMES).execute(NO_VALUES);
+        } catch (EvalSignal s) {
+            throw s.toException();
+        }
+    }
+
+    /**
+     * Like {@link #eval(String)} but never throws for bad input: the result carries either the
+     * value or an error code and column.
+     */
+    public EvalResult tryEval(String input) {
+        if (input == null) return EvalResult.error(EvalResult.Code.EMPTY, 0, null);
+        try {
+            return EvalResult.ok(parse(input, NO_NAMES).execute(NO_VALUES));
+        } catch (EvalSignal s) {
+            return s.toResult();
+        }
+    }
+
+    /**
+     * Evaluates an expression read from {@code in} in a single fused pass (see
+     * {@link StreamingEvaluator}). Memory use follows the nesting depth of the expression, not
+     * its length, so generated expressions larger than the heap can be evaluated.
+     */
+    public double eval(Reader in) throws IOException {
+        return new StreamingEvaluator(in, angleMode).run();
+    }
+
+    /** UTF-8 variant of {@link #eval(Reader)}. */
+    public double eval(ReadableByteChannel in) throws IOException {
+        return eval(Channels.newReader(in, StandardCharsets.UTF_8.newDecoder(), 8192));
+    }
+
+    public Complex evalComplex(String input) {
+        return compile(input).evaluateComplex();
+    }
+
+    /**
+     * Evaluates with exact rational arithmetic: returns a {@link Rational} (0.1+0.2 is exactly
+     * 3/10, fact(25) has all its digits), or a {@link Double} once a function without an exact
+     * result (sin, ln, sqrt(2), ...) is involved.
+     */
+    public Number evalExact(String input) {
+        return compile(input).evaluateExact();
+    }
+
+    /**
+     * Parses the expression once into a {@link CompiledExpression}. Identifiers that are not
+     * followed by '(' and are not constants are bound to the given variable names, in order.
+     * The current angle mode is captured in the compiled form.
+     */
+    public CompiledExpression compile(String input, String... variables) {
+        try {
+            return parse(input, variables);
+        } catch (EvalSignal s) {
+            throw s.toException();
+        }
+    }
+
+    private static final String[] NO_NAMES = new String[0];
+    private static final double[] NO_VALUES = new double[0];
+
+    /** {@link #compile} without the conversion of signals to exceptions. */
+    private CompiledExpression parse(String input, String[] variables) {
         if (input == null) throw new IllegalArgumentException("Expression is null");
-        String expr = input.trim();
-        if (expr.isEmpty()) throw new IllegalArgumentException("Empty expression");
+        String[] vars = new String[variables.length];
+        for (int i = 0; i < vars.length; i++) vars[i] = variables[i].toLowerCase(Locale.ROOT);
 
-        List<Token> tokens = tokenize(expr);
+        List<Token> tokens = tokenize(input);
         List<Token> rpn = toRPN(tokens);
-        return evalRPN(rpn);
+        Set<UserFunction> uses = new LinkedHashSet<>();
+        if (!functions.isEmpty()) rpn = expand(rpn, vars, uses);
+        return assemble(rpn, vars, angleMode, uses);
+    }
+
+    /**
+     * Names the expression reads as variables, in order of first use: identifiers not followed
+     * by '(' other than the constants pi and e and the imaginary unit i.
+     */
+    public List<String> variablesOf(String input) {
+        if (input == null) throw new IllegalArgumentException("Expression is null");
+        List<Token> rpn;
+        try {
+            rpn = toRPN(tokenize(input));
+        } catch (EvalSignal s) {
+            throw s.toException();
+        }
+        List<String> names = new ArrayList<>();
+        for (Token t : rpn) {
+            if (t.type != Type.IDENT || t.text.equals("pi") || t.text.equals("e") || t.text.equals("i")) continue;
+            if (!names.contains(t.text)) names.add(t.text);
+        }
+        return names;
     }
 
-    private enum Type { NUMBER, OP, LPAREN, RPAREN, IDENT, COMMA }
+    private enum Type { NUMBER, OP, LPAREN, RPAREN, IDENT, FUNC, CALL, COMMA }
 
     private static class Token {
         final Type type;
         final String text;
         final double number;
-        Token(Type type, String text) { this.type = type; this.text = text; this.number = Double.NaN; }
-        Token(double number) { this.type = Type.NUMBER; this.text = Double.toString(number); this.number = number; }
+        final int pos;              // index of the token's first character in the input
+        final int argc;             // FUNC and CALL: number of arguments
+        final UserFunction fn;      // CALL: the function called
+        Token(Type type, String text, int pos) { this(type, text, Double.NaN, pos, 0, null); }
+        Token(String text, double number, int pos) { this(Type.NUMBER, text, number, pos, 0, null); }
+        Token(Type type, String text, double number, int pos, int argc, UserFunction fn) {
+            this.type = type; this.text = text; this.number = number; this.pos = pos; this.argc = argc; this.fn = fn;
+        }
+        Token at(int pos) { return new Token(type, text, number, pos, argc, fn); }
         @Override public String toString() { return type + ":" + text; }
     }
 
     private List<Token> tokenize(String expr) {
         List<Token> out = new ArrayList<>();
-        int i = 0;
-        while (i < expr.length()) {
+        int end = expr.length(), i = 0;
+        while (end > 0 && expr.charAt(end - 1) <= ' ') end--;        // same bounds as trim()
+        while (i < end && expr.charAt(i) <= ' ') i++;
+        while (i < end) {
             char c = expr.charAt(i);
             if (Character.isWhitespace(c)) { i++; continue; }
 
-            if (Character.isDigit(c) || c == '.') {
+            if ((c >= '0' && c <= '9') || c == '.') {       // ASCII only: parseDouble rejects other digits
                 int start = i;
                 boolean dotSeen = (c == '.');
                 i++;
-                while (i < expr.length()) {
+                while (i < end) {
                     char ch = expr.charAt(i);
-                    if (Character.isDigit(ch)) i++;
+                    if (ch >= '0' && ch <= '9') i++;
                     else if (ch == '.' && !dotSeen) { dotSeen = true; i++; }
                     else break;
                 }
                 String numStr = expr.substring(start, i);
-                if (numStr.equals(".")) throw new IllegalArgumentException("Invalid number: '.'");
-                out.add(new Token(Double.parseDouble(numStr)));
+                if (numStr.equals(".")) throw EvalSignal.raise(EvalResult.Code.INVALID_NUMBER, start, "'.'");
+                out.add(new Token(numStr, Double.parseDouble(numStr), start));
                 continue;
             }
 
             if (Character.isLetter(c)) {
                 int start = i;
                 i++;
-                while (i < expr.length() && (Character.isLetterOrDigit(expr.charAt(i)) || expr.charAt(i) == '_')) i++;
+                while (i < end && (Character.isLetterOrDigit(expr.charAt(i)) || expr.charAt(i) == '_')) i++;
                 String ident = expr.substring(start, i).toLowerCase(Locale.ROOT);
-                out.add(new Token(Type.IDENT, ident));
+                out.add(new Token(Type.IDENT, ident, start));
                 continue;
             }
 
-            if (c == '(') { out.add(new Token(Type.LPAREN, "(")); i++; continue; }
-            if (c == ')') { out.add(new Token(Type.RPAREN, ")")); i++; continue; }
-            if (c == ',') { out.add(new Token(Type.COMMA, ",")); i++; continue; }
+            if (c == '(') { out.add(new Token(Type.LPAREN, "(", i)); i++; continue; }
+            if (c == ')') { out.add(new Token(Type.RPAREN, ")", i)); i++; continue; }
+            if (c == ',') { out.add(new Token(Type.COMMA, ",", i)); i++; continue; }
 
-            if ("+-*/%^".indexOf(c) >= 0) { out.add(new Token(Type.OP, Character.toString(c))); i++; continue; }
+            int op = "+-*/%^".indexOf(c);
+            if (op >= 0) { out.add(new Token(Type.OP, OP_TEXT[op], i)); i++; continue; }
 
-            throw new IllegalArgumentException("Unexpected character: '" + c + "'");
+            throw EvalSignal.raise(EvalResult.Code.UNEXPECTED_CHARACTER, i, "'" + c + "'");
         }
+        if (out.isEmpty()) throw EvalSignal.raise(EvalResult.Code.EMPTY, -1, null);
         return out;
     }
 
+    private static class Call {
+        final Token fn, paren;
+        int argc = 1;
+        Call(Token fn, Token paren) { this.fn = fn; this.paren = paren; }
+    }
+
     private static class OpInfo {
         final int prec;
         final boolean rightAssoc;
@@ -100,6 +217,8 @@ public class ExpressionEvaluator {
         OpInfo(int prec, boolean rightAssoc, int arity) { this.prec = prec; this.rightAssoc = rightAssoc; this.arity = arity; }
     }
 
+    private static final String[] OP_TEXT = {"+", "-", "*", "/", "%", "^"};
+
     private static final Map<String, OpInfo> OPS = new HashMap<>();
     static {
         OPS.put("+", new OpInfo(1, false, 2));
@@ -114,10 +233,17 @@ public class ExpressionEvaluator {
     private List<Token> toRPN(List<Token> tokens) {
         List<Token> out = new ArrayList<>();
         Deque<Token> stack = new ArrayDeque<>();
+        Deque<Call> calls = new ArrayDeque<>();             // open function calls, innermost first
 
         Token prev = null;
-        for (Token t0 : tokens) {
-            Token t = t0;
+        for (int i = 0; i < tokens.size(); i++) {
+            Token t = tokens.get(i);
+
+            // two operands in a row ("2 3", "2(3)", "pi e") have no operator between them
+            boolean afterValue = prev != null && (prev.type == Type.NUMBER || prev.type == Type.IDENT || prev.type == Type.RPAREN);
+            if (afterValue && (t.type == Type.NUMBER || t.type == Type.IDENT || t.type == Type.LPAREN)) {
+                throw EvalSignal.raise(EvalResult.Code.MISSING_OPERATOR, t.pos, null);
+            }
 
             switch (t.type) {
                 case NUMBER:
@@ -125,13 +251,22 @@ public class ExpressionEvaluator {
                     break;
 
                 case IDENT:
-                    stack.push(t); // function/constant
+                    if (i + 1 < tokens.size() && tokens.get(i + 1).type == Type.LPAREN) {
+                        t = new Token(Type.FUNC, t.text, t.pos);
+                        stack.push(t); // function call, emitted at its ')'
+                    } else {
+                        out.add(t); // constant or variable
+                    }
                     break;
 
-                case COMMA:
+                case COMMA: {
                     while (!stack.isEmpty() && stack.peek().type != Type.LPAREN) out.add(stack.pop());
-                    if (stack.isEmpty()) throw new IllegalArgumentException("Misplaced comma or missing '('");
+                    Call call = calls.peek();
+                    if (call == null || stack.peek() != call.paren) throw EvalSignal.raise(EvalResult.Code.MISPLACED_COMMA, t.pos, null);
+                    if (!afterValue) throw EvalSignal.raise(EvalResult.Code.MISSING_ARGUMENT, t.pos, call.fn.text);
+                    call.argc++;
                     break;
+                }
 
                 case OP: {
                     String op = t.text;
@@ -139,14 +274,16 @@ public class ExpressionEvaluator {
                     if (op.equals("-")) {
                         if (prev == null || prev.type == Type.OP || prev.type == Type.LPAREN || prev.type == Type.COMMA) {
                             op = "u-";
-                            t = new Token(Type.OP, op);
+                            t = new Token(Type.OP, op, t.pos);
                         }
                     }
 
                     OpInfo o1 = OPS.get(op);
                     if (o1 == null) throw new IllegalArgumentException("Unknown operator: " + op);
+                    if (o1.arity == 2 && !afterValue) throw EvalSignal.raise(EvalResult.Code.MISSING_OPERAND, t.pos, op);
 
-                    while (!stack.isEmpty() && stack.peek().type == Type.OP) {
+                    // a prefix operator has no left operand, so it must not pop pending operators (2^-3)
+                    while (o1.arity == 2 && !stack.isEmpty() && stack.peek().type == Type.OP) {
                         String op2 = stack.peek().text;
                         OpInfo o2 = OPS.get(op2);
                         if (o2 == null) break;
@@ -159,145 +296,459 @@ public class ExpressionEvaluator {
                 }
 
                 case LPAREN:
+                    if (!stack.isEmpty() && stack.peek().type == Type.FUNC) calls.push(new Call(stack.peek(), t));
                     stack.push(t);
                     break;
 
                 case RPAREN:
+                    if (prev != null && prev.type == Type.COMMA) {
+                        throw EvalSignal.raise(EvalResult.Code.MISSING_ARGUMENT, t.pos, calls.peek().fn.text);
+                    }
+                    if (prev != null && prev.type == Type.LPAREN) {
+                        stack.pop();
+                        if (!stack.isEmpty() && stack.peek().type == Type.FUNC) {
+                            throw EvalSignal.raise(EvalResult.Code.MISSING_ARGUMENT, t.pos, stack.peek().text);
+                        }
+                        throw EvalSignal.raise(EvalResult.Code.INVALID_EXPRESSION, t.pos, null);
+                    }
                     while (!stack.isEmpty() && stack.peek().type != Type.LPAREN) out.add(stack.pop());
-                    if (stack.isEmpty()) throw new IllegalArgumentException("Mismatched ')'");
+                    if (stack.isEmpty()) throw EvalSignal.raise(EvalResult.Code.UNMATCHED_CLOSE, t.pos, null);
                     stack.pop(); // '('
-                    if (!stack.isEmpty() && stack.peek().type == Type.IDENT) out.add(stack.pop()); // function call
+                    if (!stack.isEmpty() && stack.peek().type == Type.FUNC) {
+                        Token f = stack.pop();
+                        out.add(new Token(Type.FUNC, f.text, Double.NaN, f.pos, calls.pop().argc, null)); // function call
+                    }
                     break;
 
                 default:
                     throw new IllegalStateException("Unhandled token: " + t);
             }
-            if (t.type != Type.COMMA) prev = t;
+            prev = t;
         }
 
         while (!stack.isEmpty()) {
             Token t = stack.pop();
-            if (t.type == Type.LPAREN || t.type == Type.RPAREN) throw new IllegalArgumentException("Mismatched parentheses");
+            if (t.type == Type.LPAREN || t.type == Type.RPAREN) throw EvalSignal.raise(EvalResult.Code.UNMATCHED_OPEN, t.pos, null);
             out.add(t);
         }
         return out;
     }
 
-    private double evalRPN(List<Token> rpn) {
-        Deque<Double> st = new ArrayDeque<>();
+
+    private CompiledExpression assemble(List<Token> rpn, String[] vars, AngleMode mode, Set<UserFunction> uses) {
+        List<UserFunction> callees = new ArrayList<>();
+        byte[] ops = new byte[rpn.size()];
+        int[] args = new int[rpn.size()];
+        int[] cols = new int[rpn.size()];
+        double[] constants = new double[rpn.size()];
+        String[] literals = new String[rpn.size()];        // source text of each constant, for exact mode
+        int n = 0, nConst = 0, depth = 0, maxDepth = 0;
+
         for (Token t : rpn) {
-            if (t.type == Type.NUMBER) { st.push(t.number); continue; }
+            switch (t.type) {
+                case NUMBER:
+                    constants[nConst] = t.number;
+                    literals[nConst] = t.text;
+                    ops[n] = CompiledExpression.CONST; args[n++] = nConst++;
+                    depth++;
+                    break;
+
+                case IDENT: {
+                    String id = t.text;
+                    if (id.equals("pi") || id.equals("e")) {
+                        constants[nConst] = id.equals("pi") ? Math.PI : Math.E;
+                        ops[n] = CompiledExpression.CONST; args[n++] = nConst++;
+                    } else {
+                        int slot = Arrays.asList(vars).indexOf(id);
+                        if (slot >= 0) {
+                            ops[n] = CompiledExpression.VAR; args[n++] = slot;
+                        } else if (id.equals("i")) {
+                            cols[n] = t.pos;
+                            ops[n] = CompiledExpression.IMAG; args[n++] = 0;
+                        } else {
+                            throw EvalSignal.raise(EvalResult.Code.UNKNOWN_VARIABLE, t.pos, id);
+                        }
+                    }
+                    depth++;
+                    break;
+                }
 
-            if (t.type == Type.OP) {
-                OpInfo info = OPS.get(t.text);
-                if (info == null) throw new IllegalArgumentException("Unknown operator: " + t.text);
-                if (st.size() < info.arity) throw new IllegalArgumentException("Not enough operands for operator " + t.text);
+                case OP: {
+                    OpInfo info = OPS.get(t.text);
+                    if (info == null) throw new IllegalArgumentException("Unknown operator: " + t.text);
+                    if (depth < info.arity) throw EvalSignal.raise(EvalResult.Code.MISSING_OPERAND, t.pos, t.text);
+                    depth -= info.arity - 1;
+
+                    byte op = opcode(t.text);
+                    if (op == CompiledExpression.POW && ops[n - 1] == CompiledExpression.CONST) {
+                        // Small integral exponents become POWI so batch kernels can multiply instead of calling pow.
+                        double exp = constants[args[n - 1]];
+                        if (exp == Math.rint(exp) && Math.abs(exp) <= CompiledExpression.MAX_POWI) {
+                            ops[n - 1] = CompiledExpression.POWI; args[n - 1] = (int) exp; cols[n - 1] = t.pos;
+                            nConst--;                   // the exponent is in the instruction now
+                            break;
+                        }
+                    }
+                    cols[n] = t.pos;
+                    ops[n++] = op;
+                    break;
+                }
 
-                if (info.arity == 1) {
-                    double a = st.pop();
-                    st.push(applyUnaryOp(t.text, a));
-                } else {
-                    double b = st.pop();
-                    double a = st.pop();
-                    st.push(applyBinaryOp(t.text, a, b));
+                case FUNC: {
+                    int fn = funcIndex(t.text);
+                    if (fn < 0) throw EvalSignal.raise(EvalResult.Code.UNKNOWN_FUNCTION, t.pos, t.text);
+                    if (t.argc != 1) throw EvalSignal.raise(EvalResult.Code.WRONG_ARGUMENT_COUNT, t.pos, t.text + " takes 1, got " + t.argc);
+                    if (depth < 1) throw EvalSignal.raise(EvalResult.Code.MISSING_ARGUMENT, t.pos, t.text);
+                    cols[n] = t.pos;
+                    ops[n] = CompiledExpression.FUNC; args[n++] = fn;
+                    break;
                 }
-                continue;
+
+                case CALL: {
+                    int k = callees.indexOf(t.fn);
+                    if (k < 0) { k = callees.size(); callees.add(t.fn); }
+                    if (depth < t.argc) throw EvalSignal.raise(EvalResult.Code.MISSING_ARGUMENT, t.pos, t.text);
+                    depth -= t.argc - 1;
+                    cols[n] = t.pos;
+                    ops[n] = CompiledExpression.CALL; args[n++] = k;
+                    break;
+                }
+
+                default:
+                    throw new IllegalArgumentException("Unexpected token in RPN: " + t);
             }
+            maxDepth = Math.max(maxDepth, depth);
+        }
 
-            if (t.type == Type.IDENT) {
-                String id = t.text;
+        if (depth != 1) throw EvalSignal.raise(EvalResult.Code.INVALID_EXPRESSION, -1, null);
+        CompiledExpression[] programs = new CompiledExpression[callees.size()];
+        for (int i = 0; i < programs.length; i++) programs[i] = callees.get(i).program(mode);
+        return new CompiledExpression(Arrays.copyOf(ops, n), Arrays.copyOf(args, n), Arrays.copyOf(cols, n),
+                Arrays.copyOf(constants, nConst), Arrays.copyOf(literals, nConst), vars, mode, maxDepth,
+                programs, uses.toArray(new UserFunction[0]));
+    }
+
+    // ----- user-defined functions -----
+
+    /** Bodies of at most this many tokens are inlined at each call site. */
+    static final int INLINE_LIMIT = Integer.getInteger("calc.inlineLimit", 32);
+
+    /**
+     * A function defined with {@link #defineFunction}. The body is kept as RPN with calls to
+     * other user functions already expanded, so inlining it is a token substitution. The
+     * program for CALL sites is compiled once per angle mode, on first use. A function is
+     * marked stale when it, or a function it uses, is redefined.
+     */
+    static final class UserFunction {
+        final String name;
+        final String[] params;
+        final List<Token> raw;                  // body as parsed
+        final List<Token> body;                 // body with user calls expanded
+        final Set<UserFunction> uses;           // user functions the body depends on, transitively
+        final int[] paramUses;                  // how often each parameter occurs in body
+        private final CompiledExpression[] programs = new CompiledExpression[AngleMode.values().length];
+        private final ExpressionEvaluator owner;
+        volatile boolean stale;
+
+        UserFunction(ExpressionEvaluator owner, String name, String[] params, List<Token> raw, List<Token> body, Set<UserFunction> uses) {
+            this.owner = owner;
+            this.name = name;
+            this.params = params;
+            this.raw = raw;
+            this.body = body;
+            this.uses = uses;
+            this.paramUses = new int[params.length];
+            for (Token t : body) {
+                int p = t.type == Type.IDENT ? Arrays.asList(params).indexOf(t.text) : -1;
+                if (p >= 0) paramUses[p]++;
+            }
+        }
 
-                if (id.equals("pi")) { st.push(Math.PI); continue; }
-                if (id.equals("e"))  { st.push(Math.E);  continue; }
+        CompiledExpression program(AngleMode mode) {
+            CompiledExpression p = programs[mode.ordinal()];
+            if (p == null) {
+                p = owner.assemble(body, params, mode, uses);
+                programs[mode.ordinal()] = p;
+            }
+            return p;
+        }
+    }
 
-                if (st.isEmpty()) throw new IllegalArgumentException("Missing argument for function: " + id);
-                double a = st.pop();
-                st.push(applyFunc(id, a));
-                continue;
+    private final Map<String, UserFunction> functions = new ConcurrentHashMap<>();
+
+    /**
+     * Defines or redefines a function such as {@code f(x, y) = sqrt(x^2 + y^2)}; returns its name.
+     * The body may use its parameters, pi, e, built-in functions and functions defined earlier.
+     * Redefining a function rebuilds the functions that use it and makes compiled expressions
+     * that used the old definition report {@link CompiledExpression#isStale()}; nothing else is
+     * touched. Recursive definitions are rejected: without conditionals they cannot terminate.
+     */
+    public synchronized String defineFunction(String definition) {
+        int eq = definition.indexOf('=');
+        int open = definition.indexOf('(');
+        int close = definition.indexOf(')');
+        if (eq < 0 || open < 0 || close < open || close > eq || !definition.substring(close + 1, eq).trim().isEmpty()) {
+            throw new IllegalArgumentException("Expected f(x, ...) = expression");
+        }
+        String name = checkName(definition.substring(0, open));
+        if (funcIndex(name) >= 0) throw new IllegalArgumentException("Reserved name: " + name);
+        String[] params = definition.substring(open + 1, close).split(",", -1);
+        for (int i = 0; i < params.length; i++) {
+            params[i] = checkName(params[i]);
+            for (int j = 0; j < i; j++) {
+                if (params[j].equals(params[i])) throw new IllegalArgumentException("Duplicate parameter: " + params[i]);
+            }
+        }
+
+        List<Token> raw;
+        try {
+            raw = toRPN(tokenize(definition.substring(eq + 1)));
+        } catch (EvalSignal s) {
+            throw s.toException();
+        }
+        for (Token t : raw) {
+            if (t.type == Type.IDENT && !Arrays.asList(params).contains(t.text)
+                    && !t.text.equals("pi") && !t.text.equals("e") && !t.text.equals("i")) {
+                throw new IllegalArgumentException("Unknown variable: " + t.text + " (not a parameter of " + name + ")");
+            }
+            if (t.type != Type.FUNC || funcIndex(t.text) >= 0) continue;
+            if (t.text.equals(name)) throw new IllegalArgumentException("Recursive function: " + name + " calls itself");
+            UserFunction g = functions.get(t.text);
+            if (g == null) throw new IllegalArgumentException("Unknown function: " + t.text);
+            for (UserFunction h : g.uses) {
+                if (h.name.equals(name)) {
+                    throw new IllegalArgumentException("Recursive function: " + name + " calls " + g.name + ", which calls " + name);
+                }
+            }
+        }
+
+        UserFunction old = functions.put(name, build(name, params, raw));
+        if (old != null) {
+            old.stale = true;
+            rebuildStale();
+        }
+        return name;
+    }
+
+    public boolean isFunctionDefined(String name) {
+        return functions.containsKey(name.trim().toLowerCase(Locale.ROOT));
+    }
+
+    private UserFunction build(String name, String[] params, List<Token> raw) {
+        Set<UserFunction> uses = new LinkedHashSet<>();
+        try {
+            UserFunction f = new UserFunction(this, name, params, raw, expand(raw, params, uses), uses);
+            f.program(angleMode);               // reports a malformed body now rather than at first call
+            return f;
+        } catch (EvalSignal s) {
+            throw s.toException();
+        }
+    }
+
+    /** Rebuilds every function that uses a stale one, until none does. */
+    private void rebuildStale() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (UserFunction f : functions.values()) {
+                boolean dependsOnStale = false;
+                for (UserFunction g : f.uses) dependsOnStale |= g.stale;
+                if (!dependsOnStale) continue;
+                functions.put(f.name, build(f.name, f.params, f.raw));
+                f.stale = true;
+                changed = true;
             }
+        }
+    }
 
-            throw new IllegalArgumentException("Unexpected token in RPN: " + t);
+    private static String checkName(String s) {
+        String name = s.trim().toLowerCase(Locale.ROOT);
+        boolean ok = !name.isEmpty() && Character.isLetter(name.charAt(0));
+        for (int i = 1; ok && i < name.length(); i++) ok = Character.isLetterOrDigit(name.charAt(i)) || name.charAt(i) == '_';
+        if (!ok) throw new IllegalArgumentException("Invalid name: '" + s.trim() + "'");
+        if (name.equals("pi") || name.equals("e") || name.equals("i")) throw new IllegalArgumentException("Reserved name: " + name);
+        return name;
+    }
+
+    /**
+     * Replaces calls to user functions in {@code rpn}: small bodies are substituted in place,
+     * with parameters replaced by the argument tokens; others become CALL tokens. Every user
+     * function involved is added to {@code uses}. {@code vars} are the names bound in
+     * {@code rpn}.
+     */
+    private List<Token> expand(List<Token> rpn, String[] vars, Set<UserFunction> uses) {
+        List<Token> out = new ArrayList<>(rpn.size());
+        int[] starts = new int[rpn.size() + 1];      // start index in out of each value on the stack
+        int sp = 0;
+        for (Token t : rpn) {
+            int pops;
+            switch (t.type) {
+                case NUMBER: case IDENT: pops = 0; break;
+                case OP: pops = OPS.get(t.text).arity; break;
+                case FUNC: case CALL: pops = t.argc; break;
+                default: throw new IllegalArgumentException("Unexpected token in RPN: " + t);
+            }
+            if (sp < pops) throw EvalSignal.raise(EvalResult.Code.MISSING_OPERAND, t.pos, t.text);
+            int start = pops == 0 ? out.size() : starts[sp - pops];
+
+            UserFunction f = t.type == Type.FUNC && funcIndex(t.text) < 0 ? functions.get(t.text) : null;
+            if (f == null) {
+                if (t.type == Type.CALL) { uses.add(t.fn); uses.addAll(t.fn.uses); }
+                out.add(t);
+            } else {
+                if (t.argc != f.params.length) {
+                    throw EvalSignal.raise(EvalResult.Code.WRONG_ARGUMENT_COUNT, t.pos,
+                            f.name + " takes " + f.params.length + ", got " + t.argc);
+                }
+                uses.add(f);
+                uses.addAll(f.uses);
+                if (inlinable(f, out, starts, sp, vars)) {
+                    List<List<Token>> argTokens = new ArrayList<>(t.argc);
+                    for (int a = 0; a < t.argc; a++) {
+                        int from = starts[sp - t.argc + a];
+                        int to = a + 1 < t.argc ? starts[sp - t.argc + a + 1] : out.size();
+                        argTokens.add(new ArrayList<>(out.subList(from, to)));
+                    }
+                    out.subList(start, out.size()).clear();
+                    for (Token b : f.body) {
+                        int p = b.type == Type.IDENT ? Arrays.asList(f.params).indexOf(b.text) : -1;
+                        if (p >= 0) out.addAll(argTokens.get(p));
+                        else out.add(b.at(t.pos));          // errors inside the body point at the call
+                    }
+                } else {
+                    out.add(new Token(Type.CALL, f.name, Double.NaN, t.pos, t.argc, f));
+                }
+            }
+            sp -= pops;
+            starts[sp++] = start;
         }
+        return out;
+    }
 
-        if (st.size() != 1) throw new IllegalArgumentException("Invalid expression");
-        double result = st.pop();
-        if (Double.isNaN(result) || Double.isInfinite(result)) throw new ArithmeticException("Result is not a finite number");
-        return result;
+    /**
+     * Small bodies are inlined unless that would change what the arguments do: a parameter used
+     * more than once needs a single-token argument so it is not evaluated twice, and an unused
+     * one needs an argument that cannot fail (a number, pi, e or a bound variable), because
+     * inlining drops it while a CALL evaluates it.
+     */
+    private static boolean inlinable(UserFunction f, List<Token> out, int[] starts, int sp, String[] vars) {
+        if (f.body.size() > INLINE_LIMIT) return false;
+        int n = f.params.length;
+        for (int a = 0; a < n; a++) {
+            int from = starts[sp - n + a];
+            int len = (a + 1 < n ? starts[sp - n + a + 1] : out.size()) - from;
+            if (f.paramUses[a] > 1 && len > 1) return false;
+            if (f.paramUses[a] == 0 && (len > 1 || !cannotFail(out.get(from), vars))) return false;
+        }
+        return true;
     }
 
-    private double applyUnaryOp(String op, double a) {
-        if (op.equals("u-")) return -a;
-        throw new IllegalArgumentException("Unknown unary operator: " + op);
+    private static boolean cannotFail(Token t, String[] vars) {
+        if (t.type == Type.NUMBER) return true;
+        if (t.type != Type.IDENT) return false;
+        return t.text.equals("pi") || t.text.equals("e") || Arrays.asList(vars).contains(t.text);
     }
 
-    private double applyBinaryOp(String op, double a, double b) {
+    private static byte opcode(String op) {
         switch (op) {
-            case "+": return a + b;
-            case "-": return a - b;
-            case "*": return a * b;
-            case "/":
-                if (b == 0.0) throw new ArithmeticException("Division by zero");
-                return a / b;
-            case "%":
-                if (b == 0.0) throw new ArithmeticException("Modulo by zero");
-                return a % b;
-            case "^": return Math.pow(a, b);
+            case "u-": return CompiledExpression.NEG;
+            case "+": return CompiledExpression.ADD;
+            case "-": return CompiledExpression.SUB;
+            case "*": return CompiledExpression.MUL;
+            case "/": return CompiledExpression.DIV;
+            case "%": return CompiledExpression.MOD;
+            case "^": return CompiledExpression.POW;
             default: throw new IllegalArgumentException("Unknown operator: " + op);
         }
     }
 
-    private double applyFunc(String id, double a) {
-        switch (id) {
-            case "sin": return Math.sin(toRad(a));
-            case "cos": return Math.cos(toRad(a));
-            case "tan": return Math.tan(toRad(a));
+    // Function table; the index of a name is its id in compiled programs.
+    static final int F_SIN = 0, F_COS = 1, F_TAN = 2, F_ASIN = 3, F_ACOS = 4, F_ATAN = 5,
+            F_SINH = 6, F_COSH = 7, F_TANH = 8, F_LOG = 9, F_LN = 10, F_SQRT = 11, F_CBRT = 12,
+            F_ABS = 13, F_EXP = 14, F_FLOOR = 15, F_CEIL = 16, F_ROUND = 17, F_FACT = 18, F_INV = 19;
+
+    static final String[] FUNCS = {
+            "sin", "cos", "tan", "asin", "acos", "atan",
+            "sinh", "cosh", "tanh", "log", "ln", "sqrt", "cbrt",
+            "abs", "exp", "floor", "ceil", "round", "fact", "inv"
+    };
+
+    static int funcIndex(String id) {
+        for (int i = 0; i < FUNCS.length; i++) if (FUNCS[i].equals(id)) return i;
+        return -1;
+    }
+
+    /** Throws if {@code a} is outside the domain of function {@code fn}. */
+    static void checkDomain(int fn, double a) {
+        String error = domainError(fn, a);
+        if (error != null) throw new ArithmeticException(error);
+    }
+
+    /** Why {@code a} is outside the domain of function {@code fn}, or null if it is not. */
+    static String domainError(int fn, double a) {
+        switch (fn) {
+            case F_LOG:
+                return a <= 0 ? "log(x) undefined for x<=0" : null;
+            case F_LN:
+                return a <= 0 ? "ln(x) undefined for x<=0" : null;
+            case F_SQRT:
+                return a < 0 ? "sqrt(x) undefined for x<0" : null;
+            case F_FACT:
+                if (a < 0) return "factorial undefined for x<0";
+                if (Math.abs(a - Math.rint(a)) > 1e-9) return "factorial defined for integers only";
+                if (Math.rint(a) > 170) return "factorial too large";
+                return null;
+            case F_INV:
+                return a == 0.0 ? "1/x undefined for x=0" : null;
+            default:
+                return null;
+        }
+    }
+
+    /** Applies function {@code fn} with IEEE semantics (NaN/Infinity, no domain checks). */
+    static double applyFunc(int fn, double a, AngleMode mode) {
+        switch (fn) {
+            case F_SIN: return Math.sin(toRad(a, mode));
+            case F_COS: return Math.cos(toRad(a, mode));
+            case F_TAN: return Math.tan(toRad(a, mode));
 
-            case "asin": return fromRad(Math.asin(a));
-            case "acos": return fromRad(Math.acos(a));
-            case "atan": return fromRad(Math.atan(a));
+            case F_ASIN: return fromRad(Math.asin(a), mode);
+            case F_ACOS: return fromRad(Math.acos(a), mode);
+            case F_ATAN: return fromRad(Math.atan(a), mode);
 
-            case "sinh": return Math.sinh(a);
-            case "cosh": return Math.cosh(a);
-            case "tanh": return Math.tanh(a);
+            case F_SINH: return Math.sinh(a);
+            case F_COSH: return Math.cosh(a);
+            case F_TANH: return Math.tanh(a);
 
-            case "log":
-                if (a <= 0) throw new ArithmeticException("log(x) undefined for x<=0");
-                return Math.log10(a);
-            case "ln":
-                if (a <= 0) throw new ArithmeticException("ln(x) undefined for x<=0");
-                return Math.log(a);
+            case F_LOG: return Math.log10(a);
+            case F_LN: return Math.log(a);
 
-            case "sqrt":
-                if (a < 0) throw new ArithmeticException("sqrt(x) undefined for x<0");
-                return Math.sqrt(a);
-            case "cbrt": return Math.cbrt(a);
+            case F_SQRT: return Math.sqrt(a);
+            case F_CBRT: return Math.cbrt(a);
 
-            case "abs": return Math.abs(a);
-            case "exp": return Math.exp(a);
+            case F_ABS: return Math.abs(a);
+            case F_EXP: return Math.exp(a);
 
-            case "floor": return Math.floor(a);
-            case "ceil": return Math.ceil(a);
-            case "round": return Math.rint(a);
+            case F_FLOOR: return Math.floor(a);
+            case F_CEIL: return Math.ceil(a);
+            case F_ROUND: return Math.rint(a);
 
-            case "fact": return factorial(a);
-            case "inv":
-                if (a == 0.0) throw new ArithmeticException("1/x undefined for x=0");
-                return 1.0 / a;
+            case F_FACT: return factorial(a);
+            case F_INV: return 1.0 / a;
 
             default:
-                throw new IllegalArgumentException("Unknown function: " + id);
+                throw new IllegalArgumentException("Unknown function id: " + fn);
         }
     }
 
-    private double toRad(double x) { return (angleMode == AngleMode.DEG) ? Math.toRadians(x) : x; }
-    private double fromRad(double x) { return (angleMode == AngleMode.DEG) ? Math.toDegrees(x) : x; }
+    private static double toRad(double x, AngleMode mode) { return (mode == AngleMode.DEG) ? Math.toRadians(x) : x; }
+    private static double fromRad(double x, AngleMode mode) { return (mode == AngleMode.DEG) ? Math.toDegrees(x) : x; }
 
-    private double factorial(double x) {
-        if (x < 0) throw new ArithmeticException("factorial undefined for x<0");
+    private static double factorial(double x) {
         double rounded = Math.rint(x);
-        if (Math.abs(x - rounded) > 1e-9) throw new ArithmeticException("factorial defined for integers only");
+        if (x < 0 || Math.abs(x - rounded) > 1e-9) return Double.NaN;
+        if (rounded > 170) return Double.POSITIVE_INFINITY;
         int n = (int) rounded;
-        if (n > 170) throw new ArithmeticException("factorial too large");
         double res = 1.0;
         for (int i = 2; i <= n; i++) res *= i;
         return res;
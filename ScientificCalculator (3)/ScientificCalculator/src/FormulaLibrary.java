@@ -0,0 +1,111 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A file of named, already compiled formulas. {@link #open} memory-maps the file and reads only
+ * the index; each program is decoded from the mapping the first time {@link #get} asks for it,
+ * with no lexing or parsing. Opening costs one pass over the index (a name and an offset per
+ * formula), which is linear in the number of formulas but independent of how long they are;
+ * no program is decoded until it is used.
+ *
+ * Layout: magic "SCLB", u16 format version ({@link ProgramCodec#VERSION}), u32 count, then per
+ * formula its name and the u32 offset of its program, then the programs themselves.
+ */
+public final class FormulaLibrary {
+
+    private static final int MAGIC = 0x53434C42;           // "SCLB"
+
+    private final ByteBuffer data;                          // the programs
+    private final Map<String, Integer> index;               // name -> entry number
+    private final int[] offsets;                            // entry number -> program offset in data
+    private final CompiledExpression[] loaded;
+
+    private FormulaLibrary(ByteBuffer data, Map<String, Integer> index, int[] offsets) {
+        this.data = data;
+        this.index = index;
+        this.offsets = offsets;
+        this.loaded = new CompiledExpression[offsets.length];
+    }
+
+    /** Writes {@code formulas} to {@code file}, replacing it. Names keep the map's iteration order. */
+    public static void write(Path file, Map<String, CompiledExpression> formulas) throws IOException {
+        List<byte[]> programs = new ArrayList<>(formulas.size());
+        for (CompiledExpression p : formulas.values()) programs.add(ProgramCodec.encode(p));
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(ProgramCodec.VERSION);
+            out.writeInt(formulas.size());
+            int offset = 0, i = 0;
+            for (String name : formulas.keySet()) {
+                ProgramCodec.writeString(out, name);
+                out.writeInt(offset);
+                offset += programs.get(i++).length;
+            }
+            for (byte[] p : programs) out.write(p);
+        }
+    }
+
+    public static FormulaLibrary open(Path file) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        try {
+            if (map.getInt() != MAGIC) throw new IOException("Not a formula library: " + file);
+            int version = map.getShort() & 0xFFFF;
+            if (version != ProgramCodec.VERSION) {
+                throw new IOException("Unsupported formula library version " + version + " (expected " + ProgramCodec.VERSION + ")");
+            }
+            int count = map.getInt();
+            if (count < 0 || count > map.remaining()) throw new IOException("Corrupt formula library: bad count " + count);
+            Map<String, Integer> index = new LinkedHashMap<>(count * 2);
+            int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                String name = ProgramCodec.readString(map, ProgramCodec.readVarint(map));
+                if (index.put(name, i) != null) throw new IOException("Corrupt formula library: duplicate name " + name);
+                offsets[i] = map.getInt();
+            }
+            ByteBuffer data = map.slice();
+            for (int offset : offsets) {
+                if (offset < 0 || offset >= data.limit()) throw new IOException("Corrupt formula library: bad offset " + offset);
+            }
+            return new FormulaLibrary(data, index, offsets);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt formula library: " + file, e);
+        }
+    }
+
+    public int size() { return index.size(); }
+
+    public List<String> names() { return new ArrayList<>(index.keySet()); }
+
+    public boolean contains(String name) { return index.containsKey(name); }
+
+    /** The compiled formula, decoded on first use; null if the library has no such name. */
+    public CompiledExpression get(String name) {
+        Integer entry = index.get(name);
+        if (entry == null) return null;
+        CompiledExpression p = loaded[entry];
+        if (p == null) {
+            ByteBuffer in = data.duplicate();
+            in.position(offsets[entry]);
+            try {
+                p = ProgramCodec.read(in);
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Corrupt compiled expression: " + name + " is truncated");
+            }
+            loaded[entry] = p;                              // racing decoders store equal programs
+        }
+        return p;
+    }
+}
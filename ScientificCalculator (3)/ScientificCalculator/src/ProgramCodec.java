@@ -0,0 +1,297 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary form of a {@link CompiledExpression}, used by {@link CompiledExpression#toBytes} and
+ * {@link FormulaLibrary}. Integers are unsigned LEB128 varints, zz marks zigzag-encoded signed
+ * values, and strings are a varint length plus UTF-8:
+ *
+ * <pre>
+ *   u8     angle mode (0 = RAD, 1 = DEG)
+ *   varint max stack depth
+ *   varint variable count, then each name
+ *   varint constant count, then per constant one of
+ *            0, f64                 no literal (pi, e)
+ *            1, varint, u8 scale    decimal literal digits/10^scale, e.g. 12.5 = 125, 1
+ *            2, f64, string         any other literal
+ *   varint callee count, then each callee program in this same layout
+ *   varint instruction count, then per instruction
+ *            u8 opcode | arg << 4   when 0 <= arg < 15, else opcode | 0xF0 followed by varint arg
+ *                                   (POWI exponents are zz, CALL arguments index the callees)
+ *            zz varint              source column minus the previous instruction's
+ * </pre>
+ *
+ * Most instructions take two bytes, and most constants two to four.
+ *
+ * Function arguments are indices into {@link ExpressionEvaluator#FUNCS}, so {@link #VERSION}
+ * changes whenever the opcodes or the function table change. Decoding verifies the program
+ * (opcodes, argument ranges, stack depth, which is also bounded by the encoded size) so a
+ * damaged file cannot make the interpreter index out of bounds or allocate a huge stack.
+ */
+final class ProgramCodec {
+
+    static final int VERSION = 2;
+
+    /** Deepest chain of nested callees accepted when decoding. */
+    private static final int MAX_NESTING = 64;
+
+    private ProgramCodec() {}
+
+    static byte[] encode(CompiledExpression p) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + p.ops.length * 3 + p.constants.length * 10);
+        try {
+            write(p, new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);            // not thrown by a byte array stream
+        }
+        return bytes.toByteArray();
+    }
+
+    static void write(CompiledExpression p, DataOutputStream out) throws IOException {
+        out.writeByte(p.angleMode == ExpressionEvaluator.AngleMode.DEG ? 1 : 0);
+        writeVarint(out, p.maxStack);
+        writeVarint(out, p.vars.length);
+        for (String v : p.vars) writeString(out, v);
+        writeVarint(out, p.constants.length);
+        for (int i = 0; i < p.constants.length; i++) writeConstant(out, p.constants[i], p.literals[i]);
+        writeVarint(out, p.callees.length);
+        for (CompiledExpression c : p.callees) write(c, out);
+        writeVarint(out, p.ops.length);
+        int col = -1;
+        for (int pc = 0; pc < p.ops.length; pc++) {
+            int arg = p.args[pc];
+            if (p.ops[pc] == CompiledExpression.POWI) arg = zigzag(arg);
+            if (arg >= 0 && arg < 15) {
+                out.writeByte(p.ops[pc] | arg << 4);
+            } else {
+                out.writeByte(p.ops[pc] | 0xF0);
+                writeVarint(out, arg);
+            }
+            writeVarint(out, zigzag(p.cols[pc] - col));
+            col = p.cols[pc];
+        }
+    }
+
+    private static void writeConstant(DataOutputStream out, double value, String literal) throws IOException {
+        if (literal == null) {
+            out.writeByte(0);
+            out.writeDouble(value);
+            return;
+        }
+        int dot = literal.indexOf('.');
+        int scale = dot < 0 ? 0 : literal.length() - dot - 1;
+        int digits = literal.length() - (dot < 0 ? 0 : 1);
+        if (digits <= 15 && scale <= 22) {
+            // digits/10^scale: both exact in double, so the quotient rounds exactly like the literal
+            long unscaled = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                char c = literal.charAt(i);
+                if (c != '.') unscaled = unscaled * 10 + (c - '0');
+            }
+            out.writeByte(1);
+            writeVarLong(out, unscaled);
+            out.writeByte(scale);
+            return;
+        }
+        out.writeByte(2);
+        out.writeDouble(value);
+        writeString(out, literal);
+    }
+
+    /** Decodes one program starting at the buffer's position and advances past it. */
+    static CompiledExpression read(ByteBuffer in) {
+        return read(in, 0);
+    }
+
+    private static CompiledExpression read(ByteBuffer in, int nesting) {
+        if (nesting > MAX_NESTING) throw corrupt("callee nesting");
+        int start = in.position();
+        int mode = in.get();
+        if (mode != 0 && mode != 1) throw corrupt("angle mode " + mode);
+        int maxStack = readVarint(in);
+
+        String[] vars = new String[readCount(in)];
+        for (int i = 0; i < vars.length; i++) vars[i] = readString(in, readVarint(in));
+
+        int nConst = readCount(in);
+        double[] constants = new double[nConst];
+        String[] literals = new String[nConst];
+        for (int i = 0; i < nConst; i++) {
+            int tag = in.get();
+            switch (tag) {
+                case 0:
+                    constants[i] = in.getDouble();
+                    break;
+                case 1: {
+                    long unscaled = readVarLong(in);
+                    int scale = in.get();
+                    if (unscaled < 0 || unscaled >= 1_000_000_000_000_000L || scale < 0 || scale > 22) throw corrupt("constant " + i);
+                    constants[i] = unscaled / POW10[scale];
+                    literals[i] = decimal(unscaled, scale);
+                    break;
+                }
+                case 2:
+                    constants[i] = in.getDouble();
+                    literals[i] = readString(in, readVarint(in));
+                    break;
+                default:
+                    throw corrupt("constant tag " + tag);
+            }
+        }
+
+        CompiledExpression[] callees = new CompiledExpression[readCount(in)];
+        for (int i = 0; i < callees.length; i++) callees[i] = read(in, nesting + 1);
+
+        int n = readCount(in);
+        byte[] ops = new byte[n];
+        int[] args = new int[n];
+        int[] cols = new int[n];
+        int depth = 0, deepest = 0, col = -1;
+        for (int pc = 0; pc < n; pc++) {
+            int b = in.get() & 0xFF;
+            byte op = (byte) (b & 0x0F);
+            int arg = (b >>> 4) == 15 ? readVarint(in) : b >>> 4;
+            ops[pc] = op;
+            args[pc] = op == CompiledExpression.POWI ? unzigzag(arg) : arg;
+            col += unzigzag(readVarint(in));
+            cols[pc] = col;
+            depth += verify(op, args[pc], depth, nConst, vars.length, callees);
+            deepest = Math.max(deepest, depth);
+        }
+        if (depth != 1) throw corrupt("program leaves " + depth + " values");
+        if (maxStack < deepest || maxStack > n) throw corrupt("stack depth " + maxStack);
+        // Each instruction takes at least two bytes, so a genuine program's stack, callees
+        // included, is smaller than its encoding; this keeps a damaged size from allocating.
+        long stack = maxStack;
+        for (CompiledExpression c : callees) stack = Math.max(stack, (long) maxStack + c.stackSize);
+        if (stack > in.position() - start) throw corrupt("stack depth " + stack);
+
+        ExpressionEvaluator.AngleMode angle = mode == 1 ? ExpressionEvaluator.AngleMode.DEG : ExpressionEvaluator.AngleMode.RAD;
+        return new CompiledExpression(ops, args, cols, constants, literals, vars, angle, maxStack,
+                callees, new ExpressionEvaluator.UserFunction[0]);
+    }
+
+    /** Checks one instruction and returns its effect on the stack depth. */
+    private static int verify(byte op, int arg, int depth, int nConst, int nVars, CompiledExpression[] callees) {
+        switch (op) {
+            case CompiledExpression.CONST:
+                if (arg < 0 || arg >= nConst) throw corrupt("constant " + arg);
+                return 1;
+            case CompiledExpression.VAR:
+                if (arg < 0 || arg >= nVars) throw corrupt("variable slot " + arg);
+                return 1;
+            case CompiledExpression.IMAG:
+                return 1;
+            case CompiledExpression.NEG:
+            case CompiledExpression.POWI:
+                if (depth < 1) throw corrupt("stack underflow");
+                return 0;
+            case CompiledExpression.FUNC:
+                if (arg < 0 || arg >= ExpressionEvaluator.FUNCS.length) throw corrupt("function " + arg);
+                if (depth < 1) throw corrupt("stack underflow");
+                return 0;
+            case CompiledExpression.CALL: {
+                if (arg < 0 || arg >= callees.length) throw corrupt("callee " + arg);
+                int arity = callees[arg].vars.length;
+                if (depth < arity) throw corrupt("stack underflow");
+                return 1 - arity;
+            }
+            case CompiledExpression.ADD: case CompiledExpression.SUB: case CompiledExpression.MUL:
+            case CompiledExpression.DIV: case CompiledExpression.MOD: case CompiledExpression.POW:
+                if (depth < 2) throw corrupt("stack underflow");
+                return -1;
+            default:
+                throw corrupt("opcode " + op);
+        }
+    }
+
+    private static IllegalArgumentException corrupt(String what) {
+        return new IllegalArgumentException("Corrupt compiled expression: bad " + what);
+    }
+
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+    }
+
+    /** Literal text of digits/10^scale, keeping the scale: (1250, 2) is "12.50". */
+    private static String decimal(long unscaled, int scale) {
+        String digits = Long.toString(unscaled);
+        if (scale == 0) return digits;
+        StringBuilder sb = new StringBuilder(scale + 3);
+        for (int i = digits.length(); i <= scale; i++) sb.append('0');
+        sb.append(digits);
+        sb.insert(sb.length() - scale, '.');
+        return sb.toString();
+    }
+
+    // ----- primitives -----
+
+    private static int zigzag(int v) { return (v << 1) ^ (v >> 31); }
+    private static int unzigzag(int v) { return (v >>> 1) ^ -(v & 1); }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw corrupt("varint");
+    }
+
+    static void writeVarint(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarint(ByteBuffer in) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw corrupt("varint");
+    }
+
+    /** A varint count that must fit in the remaining bytes (each element takes at least one). */
+    private static int readCount(ByteBuffer in) {
+        int n = readVarint(in);
+        if (n < 0 || n > in.remaining()) throw corrupt("count " + n);
+        return n;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, b.length);
+        out.write(b);
+    }
+
+    static String readString(ByteBuffer in, int len) {
+        if (len < 0 || len > in.remaining()) throw corrupt("string length " + len);
+        if (in.hasArray()) {
+            String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+            return s;
+        }
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,486 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Exact result of {@link CompiledExpression#evaluateExact}: a reduced fraction with a positive
+ * denominator, e.g. 0.1+0.2 = 3/10 or fact(25) = 15511210043330985984000000.
+ *
+ * During evaluation nothing is boxed. {@link Stack} keeps each slot as a {@code long}
+ * fraction while the numbers fit; arithmetic goes through {@code Math.*Exact} and an
+ * overflow moves the slot to {@link BigInteger} fractions. A slot drops to {@code double}
+ * only for functions without exact results (sin, ln, sqrt(2), x^(1/3), ...), and whatever is
+ * computed from it stays double.
+ */
+public final class Rational extends Number {
+
+    /** Integer powers and factorials whose result would need more bits than this are computed in double. */
+    static final int MAX_BITS = 1 << 16;
+
+    /** Largest argument for which fact(n) is computed exactly. */
+    static final int MAX_FACT = 5000;
+
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    // num/den while they fit in a long, otherwise bigNum/bigDen
+    private final long num, den;
+    private final BigInteger bigNum, bigDen;
+
+    private Rational(long num, long den) {
+        this.num = num; this.den = den;
+        this.bigNum = null; this.bigDen = null;
+    }
+
+    private Rational(BigInteger num, BigInteger den) {
+        this.num = 0; this.den = 1;
+        this.bigNum = num; this.bigDen = den;
+    }
+
+    public static Rational valueOf(long n) { return new Rational(n, 1); }
+
+    public static Rational valueOf(BigInteger num, BigInteger den) {
+        if (den.signum() == 0) throw new ArithmeticException("Division by zero");
+        if (den.signum() < 0) { num = num.negate(); den = den.negate(); }
+        BigInteger g = num.gcd(den);
+        if (!g.equals(BigInteger.ONE) && g.signum() != 0) { num = num.divide(g); den = den.divide(g); }
+        if (num.bitLength() < 64 && den.bitLength() < 64) return new Rational(num.longValue(), den.longValue());
+        return new Rational(num, den);
+    }
+
+    /** Exact value of a decimal literal such as {@code 12}, {@code 0.1} or {@code .5}. */
+    public static Rational parseDecimal(String s) {
+        int dot = s.indexOf('.');
+        int scale = dot < 0 ? 0 : s.length() - dot - 1;
+        int digits = s.length() - (dot < 0 ? 0 : 1);
+        if (digits == 0) throw new NumberFormatException("Invalid number: '" + s + "'");
+        if (digits <= 18) {
+            long n = 0, d = 1;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '.') continue;
+                if (c < '0' || c > '9') throw new NumberFormatException("Invalid number: '" + s + "'");
+                n = n * 10 + (c - '0');
+            }
+            for (int i = 0; i < scale; i++) d *= 10;
+            long g = gcd(n, d);
+            return new Rational(n / g, d / g);
+        }
+        String all = dot < 0 ? s : s.substring(0, dot) + s.substring(dot + 1);
+        return valueOf(new BigInteger(all), BigInteger.TEN.pow(scale));
+    }
+
+    public BigInteger numerator() { return bigNum != null ? bigNum : BigInteger.valueOf(num); }
+    public BigInteger denominator() { return bigDen != null ? bigDen : BigInteger.valueOf(den); }
+
+    public boolean isInteger() { return bigDen == null && den == 1; }
+
+    public int signum() { return bigNum != null ? bigNum.signum() : Long.signum(num); }
+
+    @Override public double doubleValue() {
+        if (bigNum == null && Math.abs(num) < (1L << 53) && den < (1L << 53)) return (double) num / den;
+        return new BigDecimal(numerator()).divide(new BigDecimal(denominator()), MathContext.DECIMAL128).doubleValue();
+    }
+
+    @Override public float floatValue() { return (float) doubleValue(); }
+    @Override public long longValue() { return numerator().divide(denominator()).longValue(); }
+    @Override public int intValue() { return (int) longValue(); }
+
+    /**
+     * The value as a plain decimal when it has a finite expansion of at most {@code maxFraction}
+     * fraction digits (0.3, 1.25, 15511210043330985984000000), otherwise null (1/3).
+     */
+    public String toDecimalString(int maxFraction) {
+        BigInteger d = denominator();
+        int twos = d.getLowestSetBit();
+        d = d.shiftRight(twos);
+        int fives = 0;
+        BigInteger five = BigInteger.valueOf(5);
+        while (fives <= maxFraction) {
+            BigInteger[] qr = d.divideAndRemainder(five);
+            if (qr[1].signum() != 0) break;
+            d = qr[0];
+            fives++;
+        }
+        if (!d.equals(BigInteger.ONE) || Math.max(twos, fives) > maxFraction) return null;
+        return new BigDecimal(numerator()).divide(new BigDecimal(denominator())).toPlainString();
+    }
+
+    @Override public boolean equals(Object o) {
+        if (!(o instanceof Rational)) return false;
+        Rational r = (Rational) o;
+        if (bigNum == null && r.bigNum == null) return num == r.num && den == r.den;
+        return numerator().equals(r.numerator()) && denominator().equals(r.denominator());
+    }
+
+    @Override public int hashCode() { return 31 * numerator().hashCode() + denominator().hashCode(); }
+
+    @Override public String toString() {
+        if (bigNum == null) return den == 1 ? Long.toString(num) : num + "/" + den;
+        return bigDen.equals(BigInteger.ONE) ? bigNum.toString() : bigNum + "/" + bigDen;
+    }
+
+    /** Binary GCD of |a| and |b|; 1 if both are zero. */
+    static long gcd(long a, long b) {
+        if (a == 0 && b == 0) return 1;
+        if (a == 0 || b == 0) return Math.max(Math.abs(a | b), 1);   // |Long.MIN_VALUE| overflows; 1 keeps it unreduced
+        int shift = Long.numberOfTrailingZeros(a | b);
+        a >>= Long.numberOfTrailingZeros(a);
+        b >>= Long.numberOfTrailingZeros(b);
+        a = Math.abs(a); b = Math.abs(b);                          // both odd now, so Long.MIN_VALUE is gone
+        while (a != b) {
+            if (a > b) { a -= b; a >>= Long.numberOfTrailingZeros(a); }
+            else { b -= a; b >>= Long.numberOfTrailingZeros(b); }
+        }
+        return a << shift;
+    }
+
+    /**
+     * Evaluation stack for exact mode. Slot {@code k} is a long fraction {@code n[k]/d[k]},
+     * a BigInteger fraction {@code bn[k]/bd[k]} or an inexact double {@code x[k]}, as recorded
+     * in {@code kind[k]}. Binary operations combine slot {@code k} with slot {@code k+1} into
+     * slot {@code k}.
+     */
+    static final class Stack {
+        static final byte SMALL = 0, BIG = 1, REAL = 2;
+
+        final byte[] kind;
+        final long[] n, d;
+        BigInteger[] bn, bd;                // allocated on first overflow
+        double[] x;                         // allocated on first inexact value
+
+        Stack(int size) {
+            kind = new byte[size];
+            n = new long[size];
+            d = new long[size];
+        }
+
+        void set(int k, Rational r) {
+            if (r.bigNum == null) { kind[k] = SMALL; n[k] = r.num; d[k] = r.den; }
+            else setBigForm(k, r.bigNum, r.bigDen);
+        }
+
+        /** Integral doubles are exact integers; anything else stays inexact. */
+        void setDouble(int k, double v) {
+            if (v == Math.rint(v) && Math.abs(v) <= (1L << 53)) { kind[k] = SMALL; n[k] = (long) v; d[k] = 1; }
+            else setReal(k, v);
+        }
+
+        /** Result in slot {@code k}: a {@link Rational}, or a {@link Double} if it became inexact. */
+        Number result(int k) {
+            switch (kind[k]) {
+                case SMALL: return new Rational(n[k], d[k]);
+                case BIG: return new Rational(bn[k], bd[k]);
+                default:
+                    if (!Double.isFinite(x[k])) throw new ArithmeticException("Result is not a finite number");
+                    return x[k];
+            }
+        }
+
+        void copy(int from, int to) {
+            switch (kind[from]) {
+                case SMALL: kind[to] = SMALL; n[to] = n[from]; d[to] = d[from]; break;
+                case BIG: kind[to] = BIG; bn[to] = bn[from]; bd[to] = bd[from]; break;
+                default: kind[to] = REAL; x[to] = x[from];
+            }
+        }
+
+        // ----- slot helpers -----
+
+        double toDouble(int k) {
+            switch (kind[k]) {
+                case SMALL: return new Rational(n[k], d[k]).doubleValue();
+                case BIG: return new Rational(bn[k], bd[k]).doubleValue();
+                default: return x[k];
+            }
+        }
+
+        void setReal(int k, double v) {
+            if (x == null) x = new double[kind.length];
+            kind[k] = REAL; x[k] = v;
+        }
+
+        private void setBigForm(int k, BigInteger num, BigInteger den) {
+            if (bn == null) { bn = new BigInteger[kind.length]; bd = new BigInteger[kind.length]; }
+            kind[k] = BIG; bn[k] = num; bd[k] = den;
+        }
+
+        private BigInteger bigNum(int k) { return kind[k] == BIG ? bn[k] : BigInteger.valueOf(n[k]); }
+        private BigInteger bigDen(int k) { return kind[k] == BIG ? bd[k] : BigInteger.valueOf(d[k]); }
+
+        private boolean isZero(int k) {
+            switch (kind[k]) {
+                case SMALL: return n[k] == 0;
+                case BIG: return bn[k].signum() == 0;
+                default: return x[k] == 0.0;
+            }
+        }
+
+        private boolean isInteger(int k) {
+            return kind[k] == SMALL ? d[k] == 1 : kind[k] == BIG && bd[k].equals(BigInteger.ONE);
+        }
+
+        private int signum(int k) {
+            return kind[k] == SMALL ? Long.signum(n[k]) : kind[k] == BIG ? bn[k].signum() : (int) Math.signum(x[k]);
+        }
+
+        /** Stores a reduced {@code num/den} (den > 0) in long form if it fits. */
+        private void setBig(int k, BigInteger num, BigInteger den) {
+            if (den.signum() < 0) { num = num.negate(); den = den.negate(); }
+            BigInteger g = num.gcd(den);
+            if (!g.equals(BigInteger.ONE) && g.signum() != 0) { num = num.divide(g); den = den.divide(g); }
+            if (num.compareTo(LONG_MIN) > 0 && num.compareTo(LONG_MAX) <= 0 && den.bitLength() < 64) {
+                kind[k] = SMALL; n[k] = num.longValue(); d[k] = den.longValue();
+            } else {
+                setBigForm(k, num, den);
+            }
+        }
+
+        /** Stores {@code num/den} with {@code den > 0}, reducing it. */
+        private void setSmall(int k, long num, long den) {
+            long g = gcd(num, den);
+            kind[k] = SMALL; n[k] = num / g; d[k] = den / g;
+        }
+
+        void neg(int k) {
+            switch (kind[k]) {
+                case SMALL:
+                    if (n[k] != Long.MIN_VALUE) { n[k] = -n[k]; break; }
+                    setBig(k, BigInteger.valueOf(n[k]).negate(), BigInteger.valueOf(d[k]));
+                    break;
+                case BIG: bn[k] = bn[k].negate(); break;
+                default: x[k] = -x[k];
+            }
+        }
+
+        void add(int k) { addOrSub(k, false); }
+        void sub(int k) { addOrSub(k, true); }
+
+        private void addOrSub(int k, boolean minus) {
+            int j = k + 1;
+            if (kind[k] == REAL || kind[j] == REAL) {
+                setReal(k, minus ? toDouble(k) - toDouble(j) : toDouble(k) + toDouble(j));
+                return;
+            }
+            if (kind[k] == SMALL && kind[j] == SMALL && n[j] != Long.MIN_VALUE) {
+                long nj = minus ? -n[j] : n[j];
+                try {
+                    if (d[k] == 1 && d[j] == 1) {
+                        n[k] = Math.addExact(n[k], nj);
+                    } else if (d[k] == d[j]) {
+                        setSmall(k, Math.addExact(n[k], nj), d[k]);
+                    } else {
+                        long g = gcd(d[k], d[j]);
+                        long dk = d[k] / g, dj = d[j] / g;
+                        setSmall(k, Math.addExact(Math.multiplyExact(n[k], dj), Math.multiplyExact(nj, dk)),
+                                Math.multiplyExact(d[k], dj));
+                    }
+                    return;
+                } catch (ArithmeticException overflow) {
+                    // fall through to BigInteger
+                }
+            }
+            BigInteger b = minus ? bigNum(j).negate() : bigNum(j);
+            BigInteger dk = bigDen(k), dj = bigDen(j);
+            setBig(k, bigNum(k).multiply(dj).add(b.multiply(dk)), dk.multiply(dj));
+        }
+
+        void mul(int k) {
+            int j = k + 1;
+            if (kind[k] == REAL || kind[j] == REAL) { setReal(k, toDouble(k) * toDouble(j)); return; }
+            if (kind[k] == SMALL && kind[j] == SMALL) {
+                if (d[k] == 1 && d[j] == 1) {
+                    try {
+                        n[k] = Math.multiplyExact(n[k], n[j]);
+                        return;
+                    } catch (ArithmeticException overflow) {
+                        setBig(k, BigInteger.valueOf(n[k]).multiply(BigInteger.valueOf(n[j])), BigInteger.ONE);
+                        return;
+                    }
+                }
+                // cross-reduce first, so the products are already in lowest terms
+                long g1 = gcd(n[k], d[j]), g2 = gcd(n[j], d[k]);
+                try {
+                    long num = Math.multiplyExact(n[k] / g1, n[j] / g2);
+                    long den = Math.multiplyExact(d[k] / g2, d[j] / g1);
+                    kind[k] = SMALL; n[k] = num; d[k] = den;
+                    return;
+                } catch (ArithmeticException overflow) {
+                    // fall through to BigInteger
+                }
+            }
+            setBig(k, bigNum(k).multiply(bigNum(j)), bigDen(k).multiply(bigDen(j)));
+        }
+
+        void div(int k) {
+            int j = k + 1;
+            if (isZero(j)) throw new ArithmeticException("Division by zero");
+            if (kind[k] == REAL || kind[j] == REAL) { setReal(k, toDouble(k) / toDouble(j)); return; }
+            // multiply by the reciprocal
+            if (kind[j] == SMALL && n[j] != Long.MIN_VALUE) {
+                long t = n[j];
+                n[j] = t < 0 ? -d[j] : d[j];
+                d[j] = Math.abs(t);
+            } else {
+                BigInteger t = bigNum(j);
+                BigInteger dj = bigDen(j);
+                setBigForm(j, t.signum() < 0 ? dj.negate() : dj, t.abs());
+            }
+            mul(k);
+        }
+
+        /** Remainder with the sign of the dividend, as {@code %} on doubles. */
+        void mod(int k) {
+            int j = k + 1;
+            if (isZero(j)) throw new ArithmeticException("Modulo by zero");
+            if (kind[k] == REAL || kind[j] == REAL) { setReal(k, toDouble(k) % toDouble(j)); return; }
+            // a/b % c/d = (a*d % c*b) / (b*d)
+            if (kind[k] == SMALL && kind[j] == SMALL) {
+                try {
+                    long a = Math.multiplyExact(n[k], d[j]), c = Math.multiplyExact(n[j], d[k]);
+                    setSmall(k, a % c, Math.multiplyExact(d[k], d[j]));
+                    return;
+                } catch (ArithmeticException overflow) {
+                    // fall through to BigInteger
+                }
+            }
+            BigInteger a = bigNum(k).multiply(bigDen(j)), c = bigNum(j).multiply(bigDen(k));
+            setBig(k, a.remainder(c), bigDen(k).multiply(bigDen(j)));
+        }
+
+        /** Exact for integral exponents; any other exponent makes the slot inexact. */
+        void pow(int k) {
+            int j = k + 1;
+            if (kind[j] == SMALL && d[j] == 1 && n[j] == (int) n[j] && kind[k] != REAL) {
+                powi(k, (int) n[j]);
+                return;
+            }
+            setReal(k, Math.pow(toDouble(k), toDouble(j)));
+        }
+
+        void powi(int k, int e) {
+            if (kind[k] == REAL) { x[k] = Math.pow(x[k], e); return; }
+            if (e < 0) {
+                if (isZero(k)) throw new ArithmeticException("Division by zero");
+                if (e == Integer.MIN_VALUE) { setReal(k, Math.pow(toDouble(k), e)); return; }
+                powi(k, -e);
+                // reciprocal in place
+                if (kind[k] == SMALL && n[k] != Long.MIN_VALUE) {
+                    long t = n[k];
+                    n[k] = t < 0 ? -d[k] : d[k];
+                    d[k] = Math.abs(t);
+                } else if (kind[k] != REAL) {
+                    setBig(k, bigDen(k), bigNum(k));
+                } else {
+                    x[k] = 1.0 / x[k];
+                }
+                return;
+            }
+            if (kind[k] == SMALL) {
+                long pn = n[k], pd = d[k], rn = 1, rd = 1;
+                try {
+                    for (int r = e; r != 0; r >>>= 1) {
+                        if ((r & 1) != 0) { rn = Math.multiplyExact(rn, pn); rd = Math.multiplyExact(rd, pd); }
+                        if (r > 1) { pn = Math.multiplyExact(pn, pn); pd = Math.multiplyExact(pd, pd); }
+                    }
+                    n[k] = rn; d[k] = rd;
+                    return;
+                } catch (ArithmeticException overflow) {
+                    // fall through to BigInteger
+                }
+            }
+            BigInteger num = bigNum(k), den = bigDen(k);
+            if ((long) Math.max(num.bitLength(), den.bitLength()) * e > MAX_BITS) {
+                setReal(k, Math.pow(toDouble(k), e));
+                return;
+            }
+            setBig(k, num.pow(e), den.pow(e));
+        }
+
+        /**
+         * Exact for abs, floor, ceil, round, fact, inv and square roots of perfect squares;
+         * every other function is computed in double with the usual domain checks.
+         */
+        void func(int fn, ExpressionEvaluator.AngleMode mode, int k) {
+            if (kind[k] != REAL) {
+                switch (fn) {
+                    case ExpressionEvaluator.F_ABS:
+                        if (signum(k) < 0) neg(k);
+                        return;
+                    case ExpressionEvaluator.F_FLOOR:
+                    case ExpressionEvaluator.F_CEIL:
+                    case ExpressionEvaluator.F_ROUND:
+                        round(fn, k);
+                        return;
+                    case ExpressionEvaluator.F_FACT:
+                        if (signum(k) < 0) throw new ArithmeticException("factorial undefined for x<0");
+                        if (!isInteger(k)) throw new ArithmeticException("factorial defined for integers only");
+                        if (kind[k] == BIG || n[k] > MAX_FACT) throw new ArithmeticException("factorial too large");
+                        fact(k, (int) n[k]);
+                        return;
+                    case ExpressionEvaluator.F_INV:
+                        if (isZero(k)) throw new ArithmeticException("1/x undefined for x=0");
+                        setBig(k, bigDen(k), bigNum(k));
+                        return;
+                    case ExpressionEvaluator.F_SQRT:
+                        if (signum(k) >= 0 && exactSqrt(k)) return;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            double a = toDouble(k);
+            ExpressionEvaluator.checkDomain(fn, a);
+            setReal(k, ExpressionEvaluator.applyFunc(fn, a, mode));
+        }
+
+        /** floor/ceil/round (half to even, like Math.rint) of a fraction. */
+        private void round(int fn, int k) {
+            if (isInteger(k)) return;
+            BigInteger num = bigNum(k), den = bigDen(k);
+            BigInteger[] qr = num.divideAndRemainder(den);         // truncates toward zero
+            BigInteger q = qr[0];
+            BigInteger floor = num.signum() < 0 ? q.subtract(BigInteger.ONE) : q;
+            BigInteger r;
+            if (fn == ExpressionEvaluator.F_FLOOR) r = floor;
+            else if (fn == ExpressionEvaluator.F_CEIL) r = floor.add(BigInteger.ONE);
+            else {
+                // compare the fractional part num/den - floor with 1/2
+                int c = num.subtract(floor.multiply(den)).shiftLeft(1).compareTo(den);
+                r = c < 0 || (c == 0 && !floor.testBit(0)) ? floor : floor.add(BigInteger.ONE);
+            }
+            setBig(k, r, BigInteger.ONE);
+        }
+
+        private void fact(int k, int m) {
+            long acc = 1;
+            int i = 2;
+            for (; i <= m; i++) {
+                if (acc > Long.MAX_VALUE / i) break;
+                acc *= i;
+            }
+            if (i > m) { kind[k] = SMALL; n[k] = acc; d[k] = 1; return; }
+            BigInteger big = BigInteger.valueOf(acc);
+            for (; i <= m; i++) big = big.multiply(BigInteger.valueOf(i));
+            setBigForm(k, big, BigInteger.ONE);
+        }
+
+        private boolean exactSqrt(int k) {
+            BigInteger num = bigNum(k), den = bigDen(k);
+            BigInteger rn = isqrt(num), rd = isqrt(den);
+            if (!rn.multiply(rn).equals(num) || !rd.multiply(rd).equals(den)) return false;
+            setBig(k, rn, rd);
+            return true;
+        }
+
+        private static BigInteger isqrt(BigInteger v) {
+            if (v.bitLength() < 52) return BigInteger.valueOf((long) Math.sqrt(v.longValue()));
+            BigInteger r = BigInteger.ONE.shiftLeft((v.bitLength() + 1) / 2);
+            while (true) {
+                BigInteger next = r.add(v.divide(r)).shiftRight(1);
+                if (next.compareTo(r) >= 0) return r;
+                r = next;
+            }
+        }
+    }
+}
@@ -1,12 +1,22 @@
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.lang.management.ManagementFactory;
 import java.text.DecimalFormat;
+import java.util.function.Supplier;
 
 public class ScientificCalculator extends JFrame {
 
-    private final JTextField display = new JTextField();
+    private final ExpressionDocument editor = new ExpressionDocument("Consolas", 28);
+    private final JTextPane display = new JTextPane(editor) {
+        // single line: only stretch to the viewport while the expression fits, scroll otherwise
+        @Override public boolean getScrollableTracksViewportWidth() {
+            return getParent() == null || getUI().getPreferredSize(this).width <= getParent().getWidth();
+        }
+    };
     private final JLabel status = new JLabel("RAD");
     private final ExpressionEvaluator evaluator = new ExpressionEvaluator();
 
@@ -15,11 +25,23 @@ public class ScientificCalculator extends JFrame {
 
     private double memory = 0.0;
     private boolean justEvaluated = false;
+    private boolean complexMode = false;
+    private boolean exactMode = true;
+    private boolean statusShowsError = false;
+
+    private static final Font BUTTON_FONT = new Font("SansSerif", Font.PLAIN, 16);
+
+    // -Dcalc.startupTiming=true prints the time to first paint.
+    private static final boolean STARTUP_TIMING = Boolean.getBoolean("calc.startupTiming");
+    private static long mainStartNanos;
+    private boolean painted = false;
 
-    private Theme currentTheme = Theme.LIGHT;
+    private Theme currentTheme = Theme.getActive();
+    private WorksheetPanel worksheet;   // built when its tab is first opened
 
     public ScientificCalculator() {
         super("Scientific Calculator (Swing) — History + Converter + Themes");
+        getContentPane().setBackground(Theme.liveWindowBg());
 
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setMinimumSize(new Dimension(920, 680));
@@ -27,11 +49,12 @@ public class ScientificCalculator extends JFrame {
 
         setJMenuBar(buildMenuBar());
 
-        display.setFont(new Font("Consolas", Font.PLAIN, 28));
-        display.setHorizontalAlignment(SwingConstants.RIGHT);
         display.setEditable(false);
         display.setBorder(new EmptyBorder(12, 12, 12, 12));
-        display.setText("0");
+        editor.setText("0");
+        JScrollPane displayScroll = new JScrollPane(display,
+                ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+        displayScroll.setBorder(null);
 
         status.setFont(new Font("SansSerif", Font.BOLD, 14));
         status.setHorizontalAlignment(SwingConstants.LEFT);
@@ -40,11 +63,12 @@ public class ScientificCalculator extends JFrame {
         JPanel top = new JPanel(new BorderLayout(10, 0));
         top.setBorder(new EmptyBorder(12, 12, 6, 12));
         top.add(status, BorderLayout.WEST);
-        top.add(display, BorderLayout.CENTER);
+        top.add(displayScroll, BorderLayout.CENTER);
 
         JTabbedPane tabs = new JTabbedPane();
         tabs.addTab("Calculator", buildCalculatorPanel());
-        tabs.addTab("Unit Converter", new UnitConverterPanel());
+        addLazyTab(tabs, "Unit Converter", UnitConverterPanel::new);
+        addLazyTab(tabs, "Worksheet", () -> worksheet = new WorksheetPanel(evaluator, this::format));
 
         JPanel historyPanel = buildHistoryPanel();
 
@@ -56,11 +80,33 @@ public class ScientificCalculator extends JFrame {
         add(split, BorderLayout.CENTER);
 
         setupKeyboardShortcuts();
-        applyTheme(currentTheme);
 
         pack();
     }
 
+    /** Adds a placeholder tab whose content is only built the first time it is selected. */
+    private void addLazyTab(JTabbedPane tabs, String title, Supplier<JComponent> factory) {
+        int index = tabs.getTabCount();
+        tabs.addTab(title, new JPanel());
+        tabs.addChangeListener(new ChangeListener() {
+            @Override public void stateChanged(ChangeEvent e) {
+                if (tabs.getSelectedIndex() != index) return;
+                tabs.removeChangeListener(this);
+                tabs.setComponentAt(index, factory.get());
+            }
+        });
+    }
+
+    @Override public void paint(Graphics g) {
+        super.paint(g);
+        if (STARTUP_TIMING && !painted) {
+            painted = true;
+            long sinceMain = (System.nanoTime() - mainStartNanos) / 1_000_000;
+            long sinceJvm = ManagementFactory.getRuntimeMXBean().getUptime();
+            System.err.println("first paint: " + sinceMain + " ms after main, " + sinceJvm + " ms after JVM start");
+        }
+    }
+
     private JMenuBar buildMenuBar() {
         JMenuBar bar = new JMenuBar();
 
@@ -69,11 +115,19 @@ public class ScientificCalculator extends JFrame {
         for (Theme t : Theme.values()) {
             JRadioButtonMenuItem item = new JRadioButtonMenuItem(t.label);
             if (t == currentTheme) item.setSelected(true);
-            item.addActionListener(e -> { currentTheme = t; applyTheme(currentTheme); });
+            item.addActionListener(e -> applyTheme(t));
             g.add(item);
             theme.add(item);
         }
 
+        JMenu mode = new JMenu("Mode");
+        JCheckBoxMenuItem complex = new JCheckBoxMenuItem("Complex Results");
+        complex.addActionListener(e -> complexMode = complex.isSelected());
+        JCheckBoxMenuItem exact = new JCheckBoxMenuItem("Exact Arithmetic", exactMode);
+        exact.addActionListener(e -> exactMode = exact.isSelected());
+        mode.add(exact);
+        mode.add(complex);
+
         JMenu history = new JMenu("History");
         JMenuItem copy = new JMenuItem("Copy Selected to Display");
         copy.addActionListener(e -> copyHistoryToDisplay());
@@ -83,6 +137,7 @@ public class ScientificCalculator extends JFrame {
         history.add(clear);
 
         bar.add(theme);
+        bar.add(mode);
         bar.add(history);
         return bar;
     }
@@ -131,7 +186,7 @@ public class ScientificCalculator extends JFrame {
         String line = historyModel.get(idx);
         int eq = line.indexOf(" = ");
         if (eq > 0) {
-            display.setText(line.substring(0, eq));
+            editor.setText(line.substring(0, eq));
             justEvaluated = false;
         }
     }
@@ -204,7 +259,7 @@ public class ScientificCalculator extends JFrame {
 
     private JButton addBtn(JPanel panel, GridBagConstraints c, int x, int y, String text, ActionListener action) {
         JButton b = new JButton(text);
-        b.setFont(new Font("SansSerif", Font.PLAIN, 16));
+        b.setFont(BUTTON_FONT);
         b.addActionListener(action);
         c.gridx = x;
         c.gridy = y;
@@ -220,91 +275,112 @@ public class ScientificCalculator extends JFrame {
             evaluator.setAngleMode(ExpressionEvaluator.AngleMode.RAD);
             status.setText("RAD");
         }
+        if (worksheet != null) worksheet.recalculateAll();
     }
 
     private void append(String s) {
-        String cur = display.getText();
-        if (cur.equals("0") && isSimpleDigitOrDotOrPiE(s)) cur = "";
-        if (justEvaluated && startsNewExpression(s)) cur = "";
+        if ((editor.contentEquals("0") && isSimpleDigitOrDotOrPiE(s)) || (justEvaluated && startsNewExpression(s))) {
+            editor.setText(s);
+        } else {
+            editor.append(s);
+        }
         justEvaluated = false;
-        display.setText(cur + s);
     }
 
     private void insertFunc(String s) {
-        String cur = display.getText();
-        if (cur.equals("0")) cur = "";
-        if (justEvaluated) cur = "";
+        if (justEvaluated || editor.contentEquals("0")) editor.setText(s);
+        else editor.append(s);
         justEvaluated = false;
-        display.setText(cur + s);
+    }
+
+    private static boolean isDigit(String s) {
+        return s.length() == 1 && s.charAt(0) >= '0' && s.charAt(0) <= '9';
     }
 
     private boolean isSimpleDigitOrDotOrPiE(String s) {
-        return s.matches("[0-9]") || s.equals(".") || s.equals("pi") || s.equals("e");
+        return isDigit(s) || s.equals(".") || s.equals("pi") || s.equals("e");
     }
 
     private boolean startsNewExpression(String s) {
-        return s.matches("[0-9]") || s.equals(".") || s.equals("pi") || s.equals("e") || s.equals("(");
+        return isSimpleDigitOrDotOrPiE(s) || s.equals("(");
     }
 
     private void backspace() {
-        String cur = display.getText();
         if (justEvaluated) { clearAll(); return; }
-        if (cur.length() <= 1) { display.setText("0"); return; }
-        display.setText(cur.substring(0, cur.length() - 1));
+        int len = editor.getLength();
+        if (len <= 1) { editor.setText("0"); return; }
+        editor.delete(len - 1, len);
     }
 
     private void clearAll() {
-        display.setText("0");
+        editor.setText("0");
         justEvaluated = false;
     }
 
     private void clearEntry() {
         if (justEvaluated) { clearAll(); return; }
-        String cur = display.getText();
-        if (cur.equals("0")) return;
+        if (editor.contentEquals("0")) return;
 
-        int i = cur.length() - 1;
-        while (i >= 0 && Character.isWhitespace(cur.charAt(i))) i--;
-        if (i < 0) { display.setText("0"); return; }
+        int i = editor.getLength() - 1;
+        while (i >= 0 && Character.isWhitespace(editor.charAt(i))) i--;
+        if (i < 0) { editor.setText("0"); return; }
 
-        if (Character.isLetterOrDigit(cur.charAt(i)) || cur.charAt(i) == '.') {
-            while (i >= 0 && (Character.isLetterOrDigit(cur.charAt(i)) || cur.charAt(i) == '.')) i--;
+        if (Character.isLetterOrDigit(editor.charAt(i)) || editor.charAt(i) == '.') {
+            while (i >= 0 && (Character.isLetterOrDigit(editor.charAt(i)) || editor.charAt(i) == '.')) i--;
         } else i--;
 
-        String next = cur.substring(0, Math.max(0, i + 1)).trim();
-        display.setText(next.isEmpty() ? "0" : next);
+        while (i >= 0 && Character.isWhitespace(editor.charAt(i))) i--;
+        if (i < 0) editor.setText("0");
+        else editor.delete(i + 1, editor.getLength());
     }
 
     private void toggleSign() {
-        String cur = display.getText();
-        if (cur.equals("0")) return;
+        if (editor.contentEquals("0")) return;
 
-        if (justEvaluated) {
-            if (!cur.startsWith("-")) display.setText("-" + cur);
-            else display.setText(cur.substring(1));
+        if (justEvaluated || isPlainNumber(editor.text(), false)) {
+            if (editor.charAt(0) == '-') editor.delete(0, 1);
+            else editor.insert(0, "-");
             return;
         }
+        editor.append("*(-1)");
+    }
 
-        if (cur.matches("-?\\d+(\\.\\d+)?") || cur.matches("-?\\.\\d+")) {
-            if (cur.startsWith("-")) display.setText(cur.substring(1));
-            else display.setText("-" + cur);
-            return;
-        }
-        display.setText(cur + "*(-1)");
+    /** Matches [-]digits[.digits] or [-].digits; with {@code allowPlus} a leading '+' is accepted too. */
+    private static boolean isPlainNumber(String t, boolean allowPlus) {
+        int i = 0, n = t.length();
+        if (i < n && (t.charAt(i) == '-' || (allowPlus && t.charAt(i) == '+'))) i++;
+        int intStart = i;
+        while (i < n && Character.isDigit(t.charAt(i))) i++;
+        boolean intDigits = i > intStart;
+        if (i == n) return intDigits;
+        if (t.charAt(i) != '.') return false;
+        int fracStart = ++i;
+        while (i < n && Character.isDigit(t.charAt(i))) i++;
+        return i == n && i > fracStart;
     }
 
     private void evaluate() {
-        String expr = display.getText();
+        String expr = editor.text();
         try {
-            double result = evaluator.eval(expr);
-            String resStr = format(result);
-            display.setText(resStr);
+            String resStr = complexMode ? evaluator.evalComplex(expr).toString()
+                    : exactMode ? format(evaluator.evalExact(expr))
+                    : format(evaluator.eval(expr));
+            editor.setText(resStr);
             historyModel.addElement(expr + " = " + resStr);
             historyList.ensureIndexIsVisible(historyModel.size() - 1);
+            if (statusShowsError) {
+                status.setText(evaluator.getAngleMode().name());
+                statusShowsError = false;
+            }
             justEvaluated = true;
         } catch (Exception ex) {
             Toolkit.getDefaultToolkit().beep();
-            display.setText("Error");
+            // the structured result has the column; other modes' own errors fall back to the message
+            EvalResult r = evaluator.tryEval(expr);
+            String why = r.isOk() ? ex.getMessage() : r.getMessage();
+            status.setText(evaluator.getAngleMode().name() + " | " + why);
+            statusShowsError = true;
+            editor.setText("Error");
             justEvaluated = true;
         }
     }
@@ -316,11 +392,20 @@ public class ScientificCalculator extends JFrame {
         return s;
     }
 
+    /** Exact results keep all their digits when they have a short decimal form (0.3, 25!). */
+    private String format(Number x) {
+        if (x instanceof Rational) {
+            String s = ((Rational) x).toDecimalString(15);
+            if (s != null) return s;
+        }
+        return format(x.doubleValue());
+    }
+
     private double currentValueOrZero() {
-        String t = display.getText().trim();
+        String t = editor.text().trim();
         if (t.equalsIgnoreCase("error")) return 0.0;
         try {
-            if (t.matches("[-+]?\\d+(\\.\\d+)?") || t.matches("[-+]?\\.\\d+")) return Double.parseDouble(t);
+            if (isPlainNumber(t, true)) return Double.parseDouble(t);
             return evaluator.eval(t);
         } catch (Exception e) { return 0.0; }
     }
@@ -331,7 +416,7 @@ public class ScientificCalculator extends JFrame {
     }
 
     private void memoryRecall() {
-        display.setText(format(memory));
+        editor.setText(format(memory));
         justEvaluated = true;
     }
 
@@ -374,54 +459,16 @@ public class ScientificCalculator extends JFrame {
     }
 
     private void applyTheme(Theme t) {
-        getContentPane().setBackground(t.windowBg);
-        themeComponent(this, t);
-
-        historyList.setBackground(t.inputBg);
-        historyList.setForeground(t.textFg);
-        historyList.setSelectionBackground(t.accent);
-        historyList.setSelectionForeground(t.windowBg);
-
-        display.setBackground(t.inputBg);
-        display.setForeground(t.textFg);
-        status.setForeground(t.textFg);
-
+        currentTheme = t;
+        Theme.setActive(t);
         repaint();
     }
 
-    private void themeComponent(Component comp, Theme t) {
-        if (comp instanceof JMenuBar || comp instanceof JMenu || comp instanceof JMenuItem) {
-            comp.setForeground(t.textFg);
-            return;
-        }
-
-        if (comp instanceof JPanel || comp instanceof JTabbedPane || comp instanceof JSplitPane) {
-            comp.setBackground(t.panelBg);
-            comp.setForeground(t.textFg);
-        } else if (comp instanceof JLabel) {
-            comp.setForeground(t.textFg);
-        } else if (comp instanceof JTextField || comp instanceof JTextArea) {
-            comp.setBackground(t.inputBg);
-            comp.setForeground(t.textFg);
-        } else if (comp instanceof JButton) {
-            comp.setBackground(t.panelBg.darker());
-            comp.setForeground(t.textFg);
-        } else if (comp instanceof JScrollPane) {
-            comp.setBackground(t.panelBg);
-        } else {
-            comp.setForeground(t.textFg);
-        }
-
-        if (comp instanceof Container) {
-            for (Component child : ((Container) comp).getComponents()) {
-                themeComponent(child, t);
-            }
-        }
-    }
-
     public static void main(String[] args) {
+        mainStartNanos = System.nanoTime();
         SwingUtilities.invokeLater(() -> {
             try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); } catch (Exception ignored) {}
+            Theme.installDefaults(Theme.LIGHT);      // before any component, field initializers included
             new ScientificCalculator().setVisible(true);
         });
     }
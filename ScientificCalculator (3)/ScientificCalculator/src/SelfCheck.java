@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Headless consistency checks for the evaluator, runnable with {@code SC_CHECK=1 ./run.sh}
+ * (or run.bat). Prints one line per check and exits with status 1 if any failed.
+ *
+ * - the String parser and the streaming {@link ExpressionEvaluator#eval(java.io.Reader)} agree
+ *   on values and on which inputs are errors
+ * - exact evaluation: 0.1+0.2 is 3/10 and fact(25) keeps all its digits
+ * - {@link CompiledExpression#toBytes} round-trips, and damaged bytes only ever fail with
+ *   IllegalArgumentException
+ */
+public final class SelfCheck {
+
+    private static int failures;
+
+    private SelfCheck() {}
+
+    public static void main(String[] args) throws IOException {
+        checkParity();
+        checkExact();
+        checkCodec();
+        System.out.println(failures == 0 ? "All checks passed." : failures + " check(s) failed.");
+        if (failures > 0) System.exit(1);
+    }
+
+    // ----- String vs streaming -----
+
+    private static final String[] PARITY_CASES = {
+            "(1,)", "(,e)", "sin(11,)", "sin(,e)", "1,2", "max(1,2)", "((2))", "2^-3", "-2^2", "5%3",
+            "fact(5)", ".5+.5", "1.", "1e3", "sqrt(-1)", "1/0", "", "   ", ")", "(", "sin()", "\u0663+1", "1+\u0663",
+    };
+
+    private static final String[] ATOMS = {
+            "1", "2.5", ".5", "pi", "e", "0", "sin(", "sqrt(", "fact(", "(", ")", ")", "+", "-", "*", "/", "%", "^",
+            ",", "  ", ",)", "(,", "\u0663",
+    };
+
+    private static void checkParity() throws IOException {
+        ExpressionEvaluator ev = new ExpressionEvaluator();
+        int n = 0, bad = 0;
+        for (String s : PARITY_CASES) {
+            n++;
+            if (!sameOutcome(ev, s)) bad++;
+        }
+        Random r = new Random(42);
+        for (int k = 0; k < 50_000; k++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1 + r.nextInt(9); i > 0; i--) sb.append(ATOMS[r.nextInt(ATOMS.length)]);
+            n++;
+            if (!sameOutcome(ev, sb.toString())) bad++;
+        }
+        report("String/stream parity over " + n + " inputs", bad == 0);
+
+        EvalResult digit = ev.tryEval("\u0663+1");
+        report("tryEval(\"\\u0663+1\") is UNEXPECTED_CHARACTER at column 1",
+                digit.getCode() == EvalResult.Code.UNEXPECTED_CHARACTER && digit.getColumn() == 1);
+    }
+
+    private static boolean sameOutcome(ExpressionEvaluator ev, String s) throws IOException {
+        String a, b;
+        try {
+            a = Double.toString(ev.eval(s));
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            a = outcome(e);
+        }
+        try {
+            b = Double.toString(ev.eval(new StringReader(s)));
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            b = outcome(e);
+        }
+        if (a.equals(b) && !a.equals("NumberFormatException")) return true;
+        System.out.println("  " + quote(s) + ": String " + a + ", stream " + b);
+        return false;
+    }
+
+    /** Only the kind of error has to match; the two paths word some messages differently. */
+    private static String outcome(RuntimeException e) {
+        return e instanceof NumberFormatException ? "NumberFormatException" : "error";
+    }
+
+    // ----- exact arithmetic -----
+
+    private static void checkExact() {
+        ExpressionEvaluator ev = new ExpressionEvaluator();
+        Number sum = ev.evalExact("0.1+0.2");
+        report("0.1+0.2 = 3/10 exactly (got " + sum + ")", sum instanceof Rational && sum.toString().equals("3/10"));
+        Number fact = ev.evalExact("fact(25)");
+        report("fact(25) = 15511210043330985984000000 (got " + fact + ")",
+                fact.toString().equals("15511210043330985984000000"));
+    }
+
+    // ----- binary form -----
+
+    private static void checkCodec() {
+        ExpressionEvaluator ev = new ExpressionEvaluator();
+        ev.defineFunction("g(t) = " + "t*1.5+".repeat(ExpressionEvaluator.INLINE_LIMIT) + "t");
+        String[] exprs = { "1", "0.1+0.2*x", "sin(x)^3-fact(5)/y", "2500.5*x+0.0000001", "-x%3+pi", "g(x)+g(y)" };
+        double[][] inputs = { {0, 0}, {1.5, -2}, {-3, 7.25}, {1e9, 1e-9} };
+
+        boolean roundTrip = true;
+        int damaged = 0, bad = 0;
+        Random r = new Random(42);
+        for (String expr : exprs) {
+            CompiledExpression p = ev.compile(expr, "x", "y");
+            byte[] bytes = p.toBytes();
+            CompiledExpression q = CompiledExpression.fromBytes(bytes);
+            if (!Arrays.equals(bytes, q.toBytes())) roundTrip = false;
+            for (double[] in : inputs) {
+                if (!sameResult(p.tryEvaluate(in), q.tryEvaluate(in))) roundTrip = false;
+            }
+
+            for (int i = 0; i < bytes.length; i++) {
+                byte[] cut = Arrays.copyOf(bytes, i);
+                damaged++;
+                if (!decodesSafely(cut)) bad++;
+                for (int v : new int[] { 0x00, 0x01, 0x7F, 0x80, 0xFF, r.nextInt(256), r.nextInt(256) }) {
+                    byte[] flip = bytes.clone();
+                    flip[i] = (byte) v;
+                    damaged++;
+                    if (!decodesSafely(flip)) bad++;
+                }
+            }
+        }
+        report("toBytes/fromBytes round-trip of " + exprs.length + " programs", roundTrip);
+        report("damaged programs fail with IllegalArgumentException (" + damaged + " tried)", bad == 0);
+
+        // "1" is version, mode, max stack (1), ...: claim a stack of 0x7FFFFFFF instead
+        byte[] one = ev.compile("1").toBytes();
+        byte[] huge = new byte[one.length + 4];
+        huge[0] = one[0];
+        huge[1] = one[1];
+        System.arraycopy(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 }, 0, huge, 2, 5);
+        System.arraycopy(one, 3, huge, 7, one.length - 3);
+        boolean rejected;
+        try {
+            CompiledExpression.fromBytes(huge);
+            rejected = false;
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        report("max stack 0x7FFFFFFF is rejected", rejected);
+    }
+
+    /** Decoding either fails with IllegalArgumentException or yields a program that evaluates without throwing. */
+    private static boolean decodesSafely(byte[] data) {
+        CompiledExpression p;
+        try {
+            p = CompiledExpression.fromBytes(data);
+        } catch (IllegalArgumentException e) {
+            return true;
+        } catch (RuntimeException | Error e) {
+            System.out.println("  fromBytes threw " + e);
+            return false;
+        }
+        try {
+            p.tryEvaluate(new double[p.vars.length]);
+            return true;
+        } catch (RuntimeException | Error e) {
+            System.out.println("  decoded program threw " + e);
+            return false;
+        }
+    }
+
+    private static boolean sameResult(EvalResult a, EvalResult b) {
+        if (a.isOk() != b.isOk()) return false;
+        return a.isOk() ? Double.compare(a.getValue(), b.getValue()) == 0 : a.getCode() == b.getCode();
+    }
+
+    // ----- output -----
+
+    private static void report(String what, boolean ok) {
+        System.out.println((ok ? "ok    " : "FAIL  ") + what);
+        if (!ok) failures++;
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c < 0x20 || c > 0x7E) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
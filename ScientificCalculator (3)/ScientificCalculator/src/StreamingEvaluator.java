@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Fused tokenizer + shunting-yard + evaluator for {@link ExpressionEvaluator#eval(Reader)}.
+ *
+ * Characters are read through a fixed buffer and every operator is applied as soon as the
+ * shunting-yard pass pops it, so no token list or RPN list is ever built. The only state that
+ * grows is the operand/operator stacks, whose size follows the nesting depth (and chains of
+ * right-associative ^), not the input length. Results match eval(String) and both reject the
+ * same inputs; being single-pass, this one may report a problem earlier in the text first.
+ */
+final class StreamingEvaluator {
+
+    private static final int ADD = 0, SUB = 1, MUL = 2, DIV = 3, MOD = 4, POW = 5, NEG = 6;
+    private static final int[] PREC = {1, 1, 2, 2, 2, 4, 3};
+    private static final String[] SYMBOL = {"+", "-", "*", "/", "%", "^", "u-"};
+    private static final int LPAREN = -1;
+    private static final int CALL = 100;                   // CALL + function id: '(' of a function call
+
+    // what the previous token was, for unary minus and adjacency checks
+    private static final int PREV_NONE = 0, PREV_VALUE = 1, PREV_OP = 2, PREV_OPEN = 3, PREV_COMMA = 4;
+
+    private final Reader in;
+    private final ExpressionEvaluator.AngleMode mode;
+    private final char[] buf = new char[8192];
+    private int pos, lim;
+
+    private double[] vals = new double[16];
+    private int nv;
+    private int[] ops = new int[16];
+    private int[] mark = new int[16];                      // for parens: value count when opened or at the last comma
+    private int[] commas = new int[16];                    // for calls: commas seen so far
+    private int[] opens = new int[16];                     // indices in ops of the open parens, innermost last
+    private int nOpen;
+    private int no;
+
+    private final StringBuilder word = new StringBuilder();
+
+    StreamingEvaluator(Reader in, ExpressionEvaluator.AngleMode mode) {
+        this.in = in;
+        this.mode = mode;
+    }
+
+    double run() throws IOException {
+        int prev = PREV_NONE;
+        boolean any = false;
+        int c;
+        while ((c = peek()) >= 0) {
+            if (Character.isWhitespace(c)) { pos++; continue; }
+            any = true;
+
+            if ((c >= '0' && c <= '9') || c == '.') {
+                if (prev == PREV_VALUE) throw new IllegalArgumentException("Invalid expression");
+                pushValue(readNumber());
+                prev = PREV_VALUE;
+                continue;
+            }
+
+            if (Character.isLetter(c)) {
+                String id = readIdent();
+                int next = skipSpacesAndPeek();
+                if (next == '(') {
+                    int fn = ExpressionEvaluator.funcIndex(id);
+                    if (fn < 0) throw new IllegalArgumentException("Unknown function: " + id);
+                    if (prev == PREV_VALUE) throw new IllegalArgumentException("Invalid expression");
+                    pos++;
+                    pushOp(CALL + fn);
+                    prev = PREV_OPEN;
+                } else {
+                    if (prev == PREV_VALUE) throw new IllegalArgumentException("Invalid expression");
+                    pushValue(constant(id));
+                    prev = PREV_VALUE;
+                }
+                continue;
+            }
+
+            pos++;
+            switch (c) {
+                case '(':
+                    if (prev == PREV_VALUE) throw new IllegalArgumentException("Invalid expression");
+                    pushOp(LPAREN);
+                    prev = PREV_OPEN;
+                    break;
+
+                case ')': {
+                    if (prev == PREV_COMMA) {
+                        throw new IllegalArgumentException("Missing argument for function: " + ExpressionEvaluator.FUNCS[ops[no - 1] - CALL]);
+                    }
+                    while (no > 0 && ops[no - 1] >= 0 && ops[no - 1] < CALL) reduce(ops[--no]);
+                    if (no == 0) throw new IllegalArgumentException("Mismatched ')'");
+                    int open = ops[--no];
+                    nOpen--;
+                    if (nv - mark[no] != 1) {
+                        if (open >= CALL && nv == mark[no]) {
+                            throw new IllegalArgumentException("Missing argument for function: " + ExpressionEvaluator.FUNCS[open - CALL]);
+                        }
+                        throw new IllegalArgumentException("Invalid expression");
+                    }
+                    if (open >= CALL) {
+                        int fn = open - CALL;
+                        if (commas[no] > 0) {
+                            throw new IllegalArgumentException("Wrong number of arguments: "
+                                    + ExpressionEvaluator.FUNCS[fn] + " takes 1, got " + (commas[no] + 1));
+                        }
+                        ExpressionEvaluator.checkDomain(fn, vals[nv - 1]);
+                        vals[nv - 1] = ExpressionEvaluator.applyFunc(fn, vals[nv - 1], mode);
+                    }
+                    prev = PREV_VALUE;
+                    break;
+                }
+
+                case ',':
+                    while (no > 0 && ops[no - 1] >= 0 && ops[no - 1] < CALL) reduce(ops[--no]);
+                    if (no == 0 || ops[no - 1] < CALL) throw new IllegalArgumentException("Misplaced comma or missing '('");
+                    if (prev != PREV_VALUE) {
+                        throw new IllegalArgumentException("Missing argument for function: " + ExpressionEvaluator.FUNCS[ops[no - 1] - CALL]);
+                    }
+                    if (nv - mark[no - 1] != 1) throw new IllegalArgumentException("Invalid expression");
+                    commas[no - 1]++;
+                    mark[no - 1] = nv;                      // the next argument's operands start here
+                    prev = PREV_COMMA;
+                    break;
+
+                case '+': case '-': case '*': case '/': case '%': case '^': {
+                    int op = "+-*/%^".indexOf(c);
+                    if (op == SUB && prev != PREV_VALUE) {
+                        op = NEG;                              // prefix operator: nothing to pop
+                    } else {
+                        if (prev != PREV_VALUE) throw new IllegalArgumentException("Not enough operands for operator " + SYMBOL[op]);
+                        boolean right = op == POW;
+                        while (no > 0 && ops[no - 1] >= 0 && ops[no - 1] < CALL) {
+                            int top = ops[no - 1];
+                            boolean pop = right ? PREC[op] < PREC[top] : PREC[op] <= PREC[top];
+                            if (!pop) break;
+                            no--;
+                            reduce(top);
+                        }
+                    }
+                    pushOp(op);
+                    prev = PREV_OP;
+                    break;
+                }
+
+                default:
+                    throw new IllegalArgumentException("Unexpected character: '" + (char) c + "'");
+            }
+        }
+        if (!any) throw new IllegalArgumentException("Empty expression");
+
+        while (no > 0) {
+            int op = ops[--no];
+            if (op < 0 || op >= CALL) throw new IllegalArgumentException("Mismatched parentheses");
+            reduce(op);
+        }
+        if (nv != 1) throw new IllegalArgumentException("Invalid expression");
+        double result = vals[0];
+        if (Double.isNaN(result) || Double.isInfinite(result)) throw new ArithmeticException("Result is not a finite number");
+        return result;
+    }
+
+    /** Applies operator {@code op} to the operands on top of the value stack. */
+    private void reduce(int op) {
+        if (op == NEG) {
+            if (nv < 1 || !operandsAbove(1)) throw new IllegalArgumentException("Not enough operands for operator u-");
+            vals[nv - 1] = -vals[nv - 1];
+            return;
+        }
+        if (nv < 2 || !operandsAbove(2)) throw new IllegalArgumentException("Not enough operands for operator " + SYMBOL[op]);
+        double b = vals[--nv];
+        double a = vals[nv - 1];
+        double r;
+        switch (op) {
+            case ADD: r = a + b; break;
+            case SUB: r = a - b; break;
+            case MUL: r = a * b; break;
+            case DIV:
+                if (b == 0.0) throw new ArithmeticException("Division by zero");
+                r = a / b;
+                break;
+            case MOD:
+                if (b == 0.0) throw new ArithmeticException("Modulo by zero");
+                r = a % b;
+                break;
+            case POW: r = Math.pow(a, b); break;
+            default: throw new IllegalStateException("Bad operator: " + op);
+        }
+        vals[nv - 1] = r;
+    }
+
+    /** True if at least {@code k} values were pushed since the innermost open paren. */
+    private boolean operandsAbove(int k) {
+        return nv - (nOpen == 0 ? 0 : mark[opens[nOpen - 1]]) >= k;
+    }
+
+    private double constant(String id) {
+        switch (id) {
+            case "pi": return Math.PI;
+            case "e": return Math.E;
+            case "i": throw new ArithmeticException("Imaginary unit i requires complex mode");
+            default: throw new IllegalArgumentException("Unknown variable: " + id);
+        }
+    }
+
+    // ----- stacks -----
+
+    private void pushValue(double v) {
+        if (nv == vals.length) vals = Arrays.copyOf(vals, nv * 2);
+        vals[nv++] = v;
+    }
+
+    private void pushOp(int op) {
+        if (no == ops.length) {
+            ops = Arrays.copyOf(ops, no * 2);
+            mark = Arrays.copyOf(mark, no * 2);
+            commas = Arrays.copyOf(commas, no * 2);
+        }
+        mark[no] = nv;
+        commas[no] = 0;
+        if (op < 0 || op >= CALL) {
+            if (nOpen == opens.length) opens = Arrays.copyOf(opens, nOpen * 2);
+            opens[nOpen++] = no;
+        }
+        ops[no++] = op;
+    }
+
+    // ----- input -----
+
+    private int peek() throws IOException {
+        if (pos == lim) {
+            lim = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (lim <= 0) { lim = 0; return -1; }
+        }
+        return buf[pos];
+    }
+
+    private int skipSpacesAndPeek() throws IOException {
+        int c;
+        while ((c = peek()) >= 0 && Character.isWhitespace(c)) pos++;
+        return c;
+    }
+
+    private double readNumber() throws IOException {
+        word.setLength(0);
+        boolean dotSeen = false;
+        int c;
+        while ((c = peek()) >= 0) {
+            if (c >= '0' && c <= '9') word.append((char) c);
+            else if (c == '.' && !dotSeen) { dotSeen = true; word.append('.'); }
+            else break;
+            pos++;
+        }
+        if (word.length() == 1 && word.charAt(0) == '.') throw new IllegalArgumentException("Invalid number: '.'");
+        return Double.parseDouble(word.toString());
+    }
+
+    private String readIdent() throws IOException {
+        word.setLength(0);
+        int c;
+        while ((c = peek()) >= 0 && (Character.isLetterOrDigit(c) || c == '_')) {
+            word.append((char) c);
+            pos++;
+        }
+        return word.toString().toLowerCase(Locale.ROOT);
+    }
+}
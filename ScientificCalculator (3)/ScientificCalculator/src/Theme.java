@@ -1,3 +1,4 @@
+import javax.swing.*;
 import java.awt.*;
 
 public enum Theme {
@@ -12,6 +13,7 @@ public enum Theme {
     public final Color panelBg;
     public final Color inputBg;
     public final Color accent;
+    private final Color buttonBg;
 
     Theme(String label, Color windowBg, Color textFg, Color panelBg, Color inputBg, Color accent) {
         this.label = label;
@@ -20,7 +22,79 @@ public enum Theme {
         this.panelBg = panelBg;
         this.inputBg = inputBg;
         this.accent = accent;
+        this.buttonBg = panelBg.darker();
     }
 
     @Override public String toString() { return label; }
+
+    // ----- live colors -----
+    //
+    // Components get their colors from UI defaults when they are created. The defaults hold
+    // LiveColor instances whose RGB value is read from the active theme at paint time, so a
+    // theme switch is setActive() plus one repaint: no component tree walk, and tabs built
+    // later come up in the current theme.
+
+    private static volatile Theme active = LIGHT;
+
+    public static Theme getActive() { return active; }
+    public static void setActive(Theme t) { active = t; }
+
+    private static final int WINDOW_BG = 0, TEXT_FG = 1, PANEL_BG = 2, INPUT_BG = 3, ACCENT = 4, BUTTON_BG = 5;
+
+    private int rgb(int role) {
+        switch (role) {
+            case WINDOW_BG: return windowBg.getRGB();
+            case TEXT_FG: return textFg.getRGB();
+            case PANEL_BG: return panelBg.getRGB();
+            case INPUT_BG: return inputBg.getRGB();
+            case ACCENT: return accent.getRGB();
+            case BUTTON_BG: return buttonBg.getRGB();
+            default: throw new IllegalArgumentException("Unknown color role: " + role);
+        }
+    }
+
+    /**
+     * Not a UIResource on purpose: look-and-feels keep non-UIResource colors as set
+     * (Metal would otherwise paint its button gradient over Button.background).
+     */
+    private static final class LiveColor extends Color {
+        private final int role;
+        LiveColor(int role) { super(0); this.role = role; }
+        @Override public int getRGB() { return active.rgb(role); }
+    }
+
+    private static final Color LIVE_ACCENT = new LiveColor(ACCENT);
+    private static final Color LIVE_WINDOW_BG = new LiveColor(WINDOW_BG);
+
+    /** The accent color of whichever theme is active when it is painted. */
+    public static Color liveAccent() { return LIVE_ACCENT; }
+
+    /** The window background of whichever theme is active when it is painted. */
+    public static Color liveWindowBg() { return LIVE_WINDOW_BG; }
+
+    /** Registers the live colors as UI defaults; call after the look-and-feel is set and before building components. */
+    public static void installDefaults(Theme t) {
+        active = t;
+        Color windowBg = LIVE_WINDOW_BG, text = new LiveColor(TEXT_FG), panel = new LiveColor(PANEL_BG),
+                input = new LiveColor(INPUT_BG), accent = LIVE_ACCENT, button = new LiveColor(BUTTON_BG);
+
+        for (String k : new String[]{"Panel", "TabbedPane", "SplitPane", "ScrollPane"}) {
+            UIManager.put(k + ".background", panel);
+            UIManager.put(k + ".foreground", text);
+        }
+        for (String k : new String[]{"TextField", "TextArea", "TextPane", "List", "Table"}) {
+            UIManager.put(k + ".background", input);
+            UIManager.put(k + ".foreground", text);
+        }
+        UIManager.put("TextField.inactiveBackground", input);
+        UIManager.put("TextField.inactiveForeground", text);
+        UIManager.put("List.selectionBackground", accent);
+        UIManager.put("List.selectionForeground", windowBg);
+        UIManager.put("Table.selectionBackground", accent);
+        UIManager.put("Table.selectionForeground", windowBg);
+        UIManager.put("Button.background", button);
+        for (String k : new String[]{"Button", "Label", "ComboBox", "Menu", "MenuItem", "RadioButtonMenuItem", "CheckBoxMenuItem"}) {
+            UIManager.put(k + ".foreground", text);
+        }
+    }
 }
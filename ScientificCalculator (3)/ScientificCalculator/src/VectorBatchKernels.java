@@ -0,0 +1,124 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link BatchKernels} running on {@code jdk.incubator.vector} lanes. Only compiled and loaded
+ * when SIMD is requested (see run.sh); functions without a lane kernel stay on the scalar loops.
+ *
+ * Results for + - * / sqrt abs floor ceil match the scalar kernels exactly. POWI uses lanes
+ * only for exponents 0 to 2, where a product is exactly Math.pow; repeated multiplication
+ * drifts for larger exponents (x^16 is up to 10 ulp off), so all others go to Math.pow.
+ */
+class VectorBatchKernels extends BatchKernels {
+
+    private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+    private static final double TWO_52 = 0x1p52;   // at or above this every double is integral
+    private static final long SIGN = Long.MIN_VALUE;
+
+    @Override void neg(double[] a, int from, int to) {
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector.fromArray(S, a, i).neg().intoArray(a, i);
+        }
+        super.neg(a, i, to);
+    }
+
+    @Override void add(double[] a, double[] b, int from, int to) {
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector.fromArray(S, a, i).add(DoubleVector.fromArray(S, b, i)).intoArray(a, i);
+        }
+        super.add(a, b, i, to);
+    }
+
+    @Override void sub(double[] a, double[] b, int from, int to) {
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector.fromArray(S, a, i).sub(DoubleVector.fromArray(S, b, i)).intoArray(a, i);
+        }
+        super.sub(a, b, i, to);
+    }
+
+    @Override void mul(double[] a, double[] b, int from, int to) {
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector.fromArray(S, a, i).mul(DoubleVector.fromArray(S, b, i)).intoArray(a, i);
+        }
+        super.mul(a, b, i, to);
+    }
+
+    @Override void div(double[] a, double[] b, int from, int to) {
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector.fromArray(S, a, i).div(DoubleVector.fromArray(S, b, i)).intoArray(a, i);
+        }
+        super.div(a, b, i, to);
+    }
+
+    @Override void powi(double[] a, int exp, int from, int to) {
+        if (exp < 0 || exp > 2) {
+            super.powi(a, exp, from, to);
+            return;
+        }
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, a, i);
+            (exp == 0 ? DoubleVector.broadcast(S, 1.0) : exp == 1 ? x : x.mul(x)).intoArray(a, i);
+        }
+        super.powi(a, exp, i, to);
+    }
+
+    @Override void sqrt(double[] a, int from, int to) {
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector.fromArray(S, a, i).sqrt().intoArray(a, i);
+        }
+        super.sqrt(a, i, to);
+    }
+
+    @Override void abs(double[] a, int from, int to) {
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector.fromArray(S, a, i).abs().intoArray(a, i);
+        }
+        super.abs(a, i, to);
+    }
+
+    @Override void floor(double[] a, int from, int to) {
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector v = DoubleVector.fromArray(S, a, i);
+            DoubleVector t = truncate(v);
+            t = t.sub(1.0, t.compare(VectorOperators.GT, v));
+            keepSign(v, t).intoArray(a, i);
+        }
+        super.floor(a, i, to);
+    }
+
+    @Override void ceil(double[] a, int from, int to) {
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += S.length()) {
+            DoubleVector v = DoubleVector.fromArray(S, a, i);
+            DoubleVector t = truncate(v);
+            t = t.add(1.0, t.compare(VectorOperators.LT, v));
+            keepSign(v, t).intoArray(a, i);
+        }
+        super.ceil(a, i, to);
+    }
+
+    /** Rounds toward zero; lanes that are already integral, infinite or NaN pass through. */
+    private static DoubleVector truncate(DoubleVector v) {
+        VectorMask<Double> small = v.abs().compare(VectorOperators.LT, TWO_52);
+        DoubleVector t = (DoubleVector) v.convert(VectorOperators.D2L, 0).convert(VectorOperators.L2D, 0);
+        return v.blend(t, small);
+    }
+
+    /** floor/ceil never change sign, so copying the input's sign bit restores -0.0 results. */
+    private static DoubleVector keepSign(DoubleVector v, DoubleVector r) {
+        LongVector sign = v.viewAsIntegralLanes().reinterpretAsLongs().and(SIGN);
+        return r.viewAsIntegralLanes().reinterpretAsLongs().or(sign).viewAsFloatingLanes().reinterpretAsDoubles();
+    }
+}
@@ -0,0 +1,282 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Named definitions such as {@code r = 2} and {@code area = pi*r^2}, kept up to date through a
+ * dependency graph built from the parsed expressions.
+ *
+ * Changing a cell recomputes only the cells downstream of it, in topological order. The work
+ * is done in waves: every cell in a wave has all its inputs ready. Large waves are computed in
+ * parallel because their cells are independent. Definitions that would close a cycle are
+ * rejected and the previous definition is kept.
+ *
+ * A cell that fails (domain error, unknown name, failing input) keeps the error message
+ * instead of a value; its dependents fail too until it is fixed.
+ *
+ * Lines such as {@code f(x) = x^2 + 1} define functions on the evaluator instead. Redefining
+ * one recompiles and recomputes only the cells whose programs used it.
+ */
+public class Worksheet {
+
+    /** Waves smaller than this are computed on the calling thread. */
+    private static final int PARALLEL_WAVE = 256;
+
+    private static final class Cell {
+        final String name;
+        String expr;                        // null: referenced but not defined
+        CompiledExpression program;         // null with expr set: failed to recompile, see compileError
+        String compileError;
+        Cell[] deps = new Cell[0];          // in the program's variable-slot order
+        final List<Cell> dependents = new ArrayList<>();
+
+        double value;
+        String error = "Undefined";
+
+        int seen;                           // epoch marker for traversals
+        int pending;                        // inputs not yet recomputed in this pass
+
+        Cell(String name) { this.name = name; }
+    }
+
+    private final ExpressionEvaluator evaluator;
+    private final Map<String, Cell> cells = new LinkedHashMap<>();
+    private int epoch;
+
+    public Worksheet(ExpressionEvaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Parses {@code "name = expression"} and applies it (see {@link #set}), or defines a
+     * function for {@code "f(x, ...) = expression"}.
+     */
+    public List<String> define(String line) {
+        int eq = line.indexOf('=');
+        if (eq < 0) throw new IllegalArgumentException("Expected name = expression");
+        if (line.lastIndexOf('(', eq) >= 0) return defineFunction(line);
+        return set(line.substring(0, eq).trim(), line.substring(eq + 1));
+    }
+
+    /**
+     * Defines or redefines a function on the evaluator, then recompiles the cells compiled
+     * against an older definition and recomputes them and their dependents.
+     */
+    public List<String> defineFunction(String definition) {
+        evaluator.defineFunction(definition);
+        List<Cell> roots = new ArrayList<>();
+        for (Cell c : cells.values()) {
+            if (c.expr == null || (c.program != null && !c.program.isStale())) continue;
+            recompile(c);
+            roots.add(c);
+        }
+        return recompute(roots);
+    }
+
+    /** A cell whose expression no longer compiles (e.g. a function lost a parameter) shows the error. */
+    private void recompile(Cell c) {
+        try {
+            c.program = evaluator.compile(c.expr, names(c.deps));
+        } catch (IllegalArgumentException e) {
+            c.program = null;
+            c.compileError = e.getMessage();
+        }
+    }
+
+    /**
+     * Defines or redefines a cell and recomputes everything that depends on it.
+     * Returns the names that were recomputed, in evaluation order.
+     */
+    public List<String> set(String name, String expr) {
+        String key = checkName(name);
+        List<String> refs = evaluator.variablesOf(expr);
+        CompiledExpression program = evaluator.compile(expr, refs.toArray(new String[0]));
+
+        Cell cell = cell(key);
+        Cell[] deps = new Cell[refs.size()];
+        for (int i = 0; i < deps.length; i++) deps[i] = cell(refs.get(i));
+        Cell cyc = findCycle(cell, deps);
+        if (cyc != null) {
+            release(deps);
+            release(new Cell[]{cell});
+            throw new IllegalArgumentException("Circular reference: " + key + " depends on " + cyc.name
+                    + (cyc == cell ? "" : ", which depends on " + key));
+        }
+
+        Cell[] old = cell.deps;
+        for (Cell d : old) d.dependents.remove(cell);
+        for (Cell d : deps) d.dependents.add(cell);
+        release(old);
+        cell.expr = expr.trim();
+        cell.program = program;
+        cell.deps = deps;
+        return recompute(Collections.singletonList(cell));
+    }
+
+    /** Removes a definition; cells that still reference it report it as undefined. */
+    public List<String> remove(String name) {
+        Cell cell = cells.get(name.trim().toLowerCase(Locale.ROOT));
+        if (cell == null || cell.expr == null) return Collections.emptyList();
+        Cell[] old = cell.deps;
+        for (Cell d : old) d.dependents.remove(cell);
+        release(old);
+        cell.deps = new Cell[0];
+        cell.expr = null;
+        cell.program = null;
+        List<String> changed = recompute(Collections.singletonList(cell));
+        release(new Cell[]{cell});
+        return changed;
+    }
+
+    /** Recompiles every cell with the evaluator's current settings (e.g. after a DEG/RAD switch). */
+    public List<String> recalculateAll() {
+        List<Cell> roots = new ArrayList<>();
+        for (Cell c : cells.values()) {
+            if (c.expr != null) recompile(c);
+            if (c.deps.length == 0) roots.add(c);
+        }
+        return recompute(roots);
+    }
+
+    public boolean isDefined(String name) {
+        Cell c = cells.get(name.trim().toLowerCase(Locale.ROOT));
+        return c != null && c.expr != null;
+    }
+
+    /** Value of a cell; throws if the cell is undefined or failed. */
+    public double get(String name) {
+        Cell c = cells.get(name.trim().toLowerCase(Locale.ROOT));
+        if (c == null || c.expr == null) throw new IllegalArgumentException("Undefined: " + name);
+        if (c.error != null) throw new ArithmeticException(c.error);
+        return c.value;
+    }
+
+    /** Error message of a cell, or null if it has a value. */
+    public String getError(String name) {
+        Cell c = cells.get(name.trim().toLowerCase(Locale.ROOT));
+        return c == null ? "Undefined" : c.error;
+    }
+
+    public String getExpression(String name) {
+        Cell c = cells.get(name.trim().toLowerCase(Locale.ROOT));
+        return c == null ? null : c.expr;
+    }
+
+    /** Defined names, in order of first definition. */
+    public List<String> names() {
+        List<String> out = new ArrayList<>();
+        for (Cell c : cells.values()) if (c.expr != null) out.add(c.name);
+        return out;
+    }
+
+    // ----- graph -----
+
+    private Cell cell(String key) {
+        return cells.computeIfAbsent(key, Cell::new);
+    }
+
+    /** Drops undefined placeholder cells that nothing references any more. */
+    private void release(Cell[] cs) {
+        for (Cell c : cs) if (c.expr == null && c.dependents.isEmpty()) cells.remove(c.name);
+    }
+
+    private static String checkName(String name) {
+        String key = name.trim().toLowerCase(Locale.ROOT);
+        if (key.isEmpty() || !Character.isLetter(key.charAt(0))) throw new IllegalArgumentException("Invalid name: '" + name + "'");
+        for (int i = 1; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') throw new IllegalArgumentException("Invalid name: '" + name + "'");
+        }
+        if (key.equals("pi") || key.equals("e") || key.equals("i") || ExpressionEvaluator.funcIndex(key) >= 0) {
+            throw new IllegalArgumentException("Reserved name: " + key);
+        }
+        return key;
+    }
+
+    private static String[] names(Cell[] cs) {
+        String[] out = new String[cs.length];
+        for (int i = 0; i < cs.length; i++) out[i] = cs[i].name;
+        return out;
+    }
+
+    /** Returns a new input of {@code cell} that already depends on {@code cell}, or null. */
+    private Cell findCycle(Cell cell, Cell[] deps) {
+        for (Cell d : deps) if (d == cell) return cell;
+        int mark = ++epoch;
+        Deque<Cell> todo = new ArrayDeque<>();
+        cell.seen = mark;
+        todo.push(cell);
+        while (!todo.isEmpty()) {
+            for (Cell d : todo.pop().dependents) {
+                if (d.seen == mark) continue;
+                d.seen = mark;
+                todo.push(d);
+            }
+        }
+        for (Cell d : deps) if (d.seen == mark) return d;
+        return null;
+    }
+
+    /** Recomputes {@code roots} and everything downstream of them, wave by wave. */
+    private List<String> recompute(List<Cell> roots) {
+        int mark = ++epoch;
+        List<Cell> affected = new ArrayList<>();
+        Deque<Cell> todo = new ArrayDeque<>();
+        for (Cell r : roots) {
+            if (r.seen == mark) continue;
+            r.seen = mark;
+            todo.push(r);
+        }
+        while (!todo.isEmpty()) {
+            Cell c = todo.pop();
+            affected.add(c);
+            for (Cell d : c.dependents) {
+                if (d.seen == mark) continue;
+                d.seen = mark;
+                todo.push(d);
+            }
+        }
+
+        List<Cell> wave = new ArrayList<>();
+        for (Cell c : affected) {
+            int p = 0;
+            for (Cell d : c.deps) if (d.seen == mark) p++;
+            c.pending = p;
+            if (p == 0) wave.add(c);
+        }
+
+        List<String> order = new ArrayList<>(affected.size());
+        while (!wave.isEmpty()) {
+            if (wave.size() >= PARALLEL_WAVE) {
+                Cell[] w = wave.toArray(new Cell[0]);
+                IntStream.range(0, w.length).parallel().forEach(i -> compute(w[i]));
+            } else {
+                for (Cell c : wave) compute(c);
+            }
+            List<Cell> next = new ArrayList<>();
+            for (Cell c : wave) {
+                order.add(c.name);
+                for (Cell d : c.dependents) if (d.seen == mark && --d.pending == 0) next.add(d);
+            }
+            wave = next;
+        }
+        if (order.size() != affected.size()) throw new IllegalStateException("Dependency cycle in worksheet");
+        return order;
+    }
+
+    private static void compute(Cell c) {
+        if (c.expr == null) { c.error = "Undefined"; return; }
+        if (c.program == null) { c.error = c.compileError; return; }
+        double[] in = new double[c.deps.length];
+        for (int i = 0; i < in.length; i++) {
+            Cell d = c.deps[i];
+            if (d.error != null) {
+                c.error = d.expr == null ? "Unknown variable: " + d.name : "Error in " + d.name;
+                return;
+            }
+            in[i] = d.value;
+        }
+        EvalResult r = c.program.tryEvaluate(in);
+        c.value = r.isOk() ? r.getValue() : 0.0;
+        c.error = r.isOk() ? null : r.getMessage();
+    }
+}
@@ -0,0 +1,128 @@
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleFunction;
+
+/**
+ * Worksheet tab: enter definitions like "area = pi*r^2" or functions like "f(x) = x^2 + 1";
+ * the table shows every cell and only the rows the worksheet actually recomputed are
+ * refreshed after an edit.
+ */
+public class WorksheetPanel extends JPanel {
+
+    private final Worksheet sheet;
+    private final DoubleFunction<String> format;
+
+    private final JTextField input = new JTextField();
+    private final JLabel message = new JLabel(" ");
+    private final CellModel model = new CellModel();
+    private final JTable table = new JTable(model);
+
+    public WorksheetPanel(ExpressionEvaluator evaluator, DoubleFunction<String> format) {
+        super(new BorderLayout(10, 10));
+        this.sheet = new Worksheet(evaluator);
+        this.format = format;
+        setBorder(new EmptyBorder(12, 12, 12, 12));
+
+        input.setFont(new Font("Consolas", Font.PLAIN, 16));
+        JButton define = new JButton("Define");
+        JButton remove = new JButton("Remove");
+        define.addActionListener(e -> define());
+        input.addActionListener(e -> define());
+        remove.addActionListener(e -> removeSelected());
+
+        JPanel entry = new JPanel(new BorderLayout(10, 0));
+        entry.add(new JLabel("name = expression"), BorderLayout.WEST);
+        entry.add(input, BorderLayout.CENTER);
+        JPanel btns = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 0));
+        btns.add(define);
+        btns.add(remove);
+        entry.add(btns, BorderLayout.EAST);
+
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.setFont(new Font("Consolas", Font.PLAIN, 14));
+        table.setRowHeight(22);
+        table.addMouseListener(new MouseAdapter() {
+            @Override public void mouseClicked(MouseEvent e) {
+                int row = table.getSelectedRow();
+                if (e.getClickCount() == 2 && row >= 0) {
+                    String name = model.names.get(row);
+                    input.setText(name + " = " + sheet.getExpression(name));
+                }
+            }
+        });
+
+        add(entry, BorderLayout.NORTH);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        add(message, BorderLayout.SOUTH);
+    }
+
+    /** Recomputes every cell, e.g. after the angle mode changed. */
+    public void recalculateAll() {
+        model.refresh(sheet.recalculateAll());
+    }
+
+    private void define() {
+        String line = input.getText().trim();
+        if (line.isEmpty()) return;
+        try {
+            List<String> changed = sheet.define(line);
+            model.refresh(changed);
+            message.setText("Recomputed " + changed.size() + (changed.size() == 1 ? " cell" : " cells"));
+            input.setText("");
+        } catch (Exception ex) {
+            Toolkit.getDefaultToolkit().beep();
+            message.setText(ex.getMessage());
+        }
+    }
+
+    private void removeSelected() {
+        int row = table.getSelectedRow();
+        if (row < 0) return;
+        model.refresh(sheet.remove(model.names.get(row)));
+    }
+
+    private final class CellModel extends AbstractTableModel {
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> rowOf = new HashMap<>();
+
+        @Override public int getRowCount() { return names.size(); }
+        @Override public int getColumnCount() { return 3; }
+        @Override public String getColumnName(int col) { return col == 0 ? "Name" : col == 1 ? "Expression" : "Value"; }
+
+        @Override public Object getValueAt(int row, int col) {
+            String name = names.get(row);
+            if (col == 0) return name;
+            if (col == 1) return sheet.getExpression(name);
+            String err = sheet.getError(name);
+            return err != null ? "Error: " + err : format.apply(sheet.get(name));
+        }
+
+        /** Updates the rows of {@code changed}; adds new names and drops removed ones. */
+        void refresh(List<String> changed) {
+            boolean structural = false;
+            for (String n : changed) {
+                if (sheet.isDefined(n) != rowOf.containsKey(n)) structural = true;
+            }
+            if (structural) {
+                names.clear();
+                names.addAll(sheet.names());
+                rowOf.clear();
+                for (int i = 0; i < names.size(); i++) rowOf.put(names.get(i), i);
+                fireTableDataChanged();
+                return;
+            }
+            for (String n : changed) {
+                Integer row = rowOf.get(n);
+                if (row != null) fireTableRowsUpdated(row, row);
+            }
+        }
+    }
+}